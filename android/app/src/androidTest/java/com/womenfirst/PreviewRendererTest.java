@@ -0,0 +1,75 @@
+package com.womenfirst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/** The device preview path: real Bitmap.compress into the pooled Base64 sink. */
+@RunWith(AndroidJUnit4.class)
+public class PreviewRendererTest {
+    private static final int WARMUP = 20;
+    private static final int FRAMES = 100;
+
+    @Test
+    public void pooledBuffersAreReusedAfterWarmup()
+    {
+        for (PreviewConfig config : new PreviewConfig[] {
+                PreviewConfig.DEFAULT,
+                new PreviewConfig(256, 256, PreviewConfig.PNG, 100),
+                new PreviewConfig(64, 64, PreviewConfig.WEBP_LOSSLESS, 100) }) {
+            PreviewRenderer renderer = new PreviewRenderer();
+            byte[][] frames = frames(PreviewBenchmark.DEFAULT_WIDTH * PreviewBenchmark.DEFAULT_HEIGHT);
+            for (int i = 0; i < WARMUP; i++) {
+                encode(renderer, frames[i % frames.length], config);
+            }
+            long bitmapMisses = renderer.getBitmapMisses();
+            long bufferMisses = renderer.getBufferMisses();
+            for (int i = 0; i < FRAMES; i++) {
+                encode(renderer, frames[i % frames.length], config);
+            }
+            assertEquals(config + " bitmap misses", bitmapMisses, renderer.getBitmapMisses());
+            assertEquals(config + " buffer misses", bufferMisses, renderer.getBufferMisses());
+        }
+    }
+
+    @Test
+    public void encodedPreviewDecodesAtConfiguredSize()
+    {
+        PreviewRenderer renderer = new PreviewRenderer();
+        PreviewConfig config = new PreviewConfig(120, 120, PreviewConfig.JPEG, 80);
+        String base64 = encode(renderer, frames(PreviewBenchmark.DEFAULT_WIDTH * PreviewBenchmark.DEFAULT_HEIGHT)[0], config);
+        byte[] jpeg = Base64.decode(base64, Base64.NO_WRAP);
+        assertEquals(renderer.getEncodedBytes(), jpeg.length);
+        Bitmap decoded = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length);
+        assertNotNull(decoded);
+        // 300x400 frame within 120x120 keeps its 3:4 aspect ratio
+        assertEquals(90, decoded.getWidth());
+        assertEquals(120, decoded.getHeight());
+    }
+
+    private static String encode(PreviewRenderer renderer, byte[] frame, PreviewConfig config)
+    {
+        Bitmap bitmap = renderer.render(frame, PreviewBenchmark.DEFAULT_WIDTH, PreviewBenchmark.DEFAULT_HEIGHT, config);
+        return renderer.encodeBase64(bitmap, config);
+    }
+
+    private static byte[][] frames(int size)
+    {
+        Random random = new Random(5);
+        byte[][] frames = new byte[4][size];
+        for (byte[] frame : frames) {
+            random.nextBytes(frame);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,119 @@
+package com.womenfirst;
+
+import java.io.OutputStream;
+
+/**
+ * An {@link OutputStream} that Base64-encodes (no line wrapping) everything written to it into
+ * a reusable character buffer. Compressing a bitmap straight into it skips the JPEG byte array,
+ * its {@code toByteArray()} copy and the encoder's output array; after {@link #reset} the
+ * buffer is reused, so once it has grown to the usual frame size the only allocation left per
+ * frame is the final {@link #toString}.
+ */
+public class Base64Sink extends OutputStream {
+    private static final char[] ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private char[] chars;
+    private int length = 0;
+    /** bytes of an incomplete 3-byte group, in the low bits */
+    private int pending = 0;
+    private int pendingCount = 0;
+    private volatile long growths = 0;
+
+    public Base64Sink(int initialBytes)
+    {
+        chars = new char[Math.max(4, (initialBytes + 2) / 3 * 4)];
+    }
+
+    public void reset()
+    {
+        length = 0;
+        pending = 0;
+        pendingCount = 0;
+    }
+
+    /** Times the buffer had to grow; steady capture should stop adding to this after warm-up. */
+    public long getGrowths()
+    {
+        return growths;
+    }
+
+    /** Bytes written since the last {@link #reset}. */
+    public int byteCount()
+    {
+        return length / 4 * 3 + pendingCount;
+    }
+
+    /** Encoded length so far, including the padded tail of an unfinished group. */
+    public int length()
+    {
+        return length + (pendingCount > 0 ? 4 : 0);
+    }
+
+    @Override
+    public void write(int b)
+    {
+        pending = pending << 8 | (b & 0xFF);
+        if (++pendingCount == 3)
+        {
+            ensure(4);
+            emit(pending);
+            pending = 0;
+            pendingCount = 0;
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len)
+    {
+        int end = off + len;
+        while (off < end && pendingCount != 0) {
+            write(b[off++]);
+        }
+        int groups = (end - off) / 3;
+        ensure(groups * 4);
+        for (int i = 0; i < groups; i++) {
+            emit((b[off] & 0xFF) << 16 | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF));
+            off += 3;
+        }
+        while (off < end) {
+            write(b[off++]);
+        }
+    }
+
+    /** The encoded text, padded; the sink keeps its state and can still be written to. */
+    @Override
+    public String toString()
+    {
+        if (0 == pendingCount)
+        {
+            return new String(chars, 0, length);
+        }
+        ensure(4);
+        int group = pending << (8 * (3 - pendingCount));
+        chars[length] = ALPHABET[group >>> 18 & 0x3F];
+        chars[length + 1] = ALPHABET[group >>> 12 & 0x3F];
+        chars[length + 2] = pendingCount == 2 ? ALPHABET[group >>> 6 & 0x3F] : '=';
+        chars[length + 3] = '=';
+        return new String(chars, 0, length + 4);
+    }
+
+    private void emit(int group)
+    {
+        chars[length++] = ALPHABET[group >>> 18 & 0x3F];
+        chars[length++] = ALPHABET[group >>> 12 & 0x3F];
+        chars[length++] = ALPHABET[group >>> 6 & 0x3F];
+        chars[length++] = ALPHABET[group & 0x3F];
+    }
+
+    private void ensure(int more)
+    {
+        if (length + more > chars.length)
+        {
+            char[] grown = new char[Math.max(chars.length * 2, length + more)];
+            System.arraycopy(chars, 0, grown, 0, length);
+            chars = grown;
+            growths++;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.womenfirst;
+
+import java.nio.charset.Charset;
+
+/**
+ * Top-N identify candidates, best score first, and their text form in an identify result
+ * buffer: "id\tscore" entries separated by '\n', NUL padded. The parser also accepts a '\t'
+ * between entries.
+ */
+final class CandidateList {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    final String[] ids;
+    final int[] scores;
+    int size = 0;
+
+    CandidateList(int capacity)
+    {
+        ids = new String[capacity];
+        scores = new int[capacity];
+    }
+
+    void offer(String id, int score)
+    {
+        int capacity = ids.length;
+        if (capacity == 0 || (size == capacity && score <= scores[capacity - 1]))
+        {
+            return;
+        }
+        int i = size < capacity ? size++ : capacity - 1;
+        while (i > 0 && scores[i - 1] < score) {
+            ids[i] = ids[i - 1];
+            scores[i] = scores[i - 1];
+            i--;
+        }
+        ids[i] = id;
+        scores[i] = score;
+    }
+
+    /** Offers every candidate found in {@code result}; returns how many were read. */
+    int parse(byte[] result)
+    {
+        int end = 0;
+        while (end < result.length && result[end] != 0) {
+            end++;
+        }
+        String[] tokens = new String(result, 0, end, UTF_8).trim().split("[\t\n]");
+        int read = 0;
+        for (int i = 0; i + 1 < tokens.length; i += 2) {
+            try {
+                offer(tokens[i].trim(), Integer.parseInt(tokens[i + 1].trim()));
+                read++;
+            } catch (NumberFormatException e) {
+                break;
+            }
+        }
+        return read;
+    }
+
+    /** Writes the candidates into {@code result}; returns the number of candidates. */
+    int write(byte[] result)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            if (i > 0)
+            {
+                builder.append('\n');
+            }
+            builder.append(ids[i]).append('\t').append(scores[i]);
+        }
+        byte[] encoded = builder.toString().getBytes(UTF_8);
+        int length = Math.min(encoded.length, result.length);
+        System.arraycopy(encoded, 0, result, 0, length);
+        for (int i = length; i < result.length; i++) {
+            result[i] = 0;
+        }
+        return size;
+    }
+}
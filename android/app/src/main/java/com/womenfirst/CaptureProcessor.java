@@ -0,0 +1,204 @@
+package com.womenfirst;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+
+/**
+ * Moves per-frame image work (render, resize, encode, bridge emit) off the sensor's capture
+ * thread. {@link #submit} only copies the raw frame into a recycled buffer; one worker thread
+ * runs the {@link Handler} on the newest frame. A frame still waiting when the next one
+ * arrives is dropped (latest wins), so a slow consumer never backs up the sensor.
+ *
+ * <p>Buffers: at most one frame waits and one is being processed, so two recycled buffers
+ * cover every case and steady-state capture allocates nothing.
+ */
+public class CaptureProcessor {
+    private static final String TAG = "CaptureProcessor";
+
+    public interface Handler {
+        /**
+         * @param captureId the id passed to {@link #submit}
+         * @param image raw greyscale frame; valid only for the duration of the call
+         */
+        void process(long captureId, byte[] image, int width, int height);
+    }
+
+    public static class Stats {
+        public long submitted;
+        public long processed;
+        public long dropped;
+        /** frames not submitted at all because nobody wanted a preview or an upload */
+        public long skipped;
+        /** hand-off to processing start, averaged over processed frames */
+        public double avgQueueMs;
+        public double maxQueueMs;
+        public double avgProcessMs;
+
+        @Override
+        public String toString() {
+            return "submitted=" + submitted + " processed=" + processed + " dropped=" + dropped + " skipped=" + skipped
+                    + String.format(" queue avg=%.2fms max=%.2fms process avg=%.2fms", avgQueueMs, maxQueueMs, avgProcessMs);
+        }
+    }
+
+    private static class Frame {
+        long captureId;
+        byte[] image = new byte[0];
+        int width;
+        int height;
+        long submittedAt;
+    }
+
+    private final Handler handler;
+    private final Object lock = new Object();
+    private final ArrayDeque<Frame> free = new ArrayDeque<Frame>(2);
+    private Frame pending = null;
+    private Thread worker = null;
+    private volatile boolean running = false;
+
+    private long submitted = 0;
+    private long processed = 0;
+    private long dropped = 0;
+    private long skipped = 0;
+    private long queueNanos = 0;
+    private long maxQueueNanos = 0;
+    private long processNanos = 0;
+
+    public CaptureProcessor(Handler handler)
+    {
+        this.handler = handler;
+        free.add(new Frame());
+        free.add(new Frame());
+    }
+
+    public void start()
+    {
+        synchronized (lock) {
+            if (running)
+            {
+                return;
+            }
+            running = true;
+            worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "CaptureProcessor");
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /** Stops the worker; a frame still waiting is discarded. */
+    public void stop()
+    {
+        synchronized (lock) {
+            running = false;
+            if (null != pending)
+            {
+                free.add(pending);
+                pending = null;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /** Called on the capture thread: copies {@code image} and returns immediately. */
+    public void submit(long captureId, byte[] image, int width, int height)
+    {
+        synchronized (lock) {
+            if (!running)
+            {
+                return;
+            }
+            submitted++;
+            Frame frame = pending;
+            if (null != frame)
+            {
+                dropped++; // overwritten before the worker got to it
+            }
+            else
+            {
+                frame = free.poll();
+                if (null == frame)
+                {
+                    frame = new Frame(); // only after a restart while the old worker was busy
+                }
+            }
+            if (frame.image.length != image.length)
+            {
+                frame.image = new byte[image.length];
+            }
+            System.arraycopy(image, 0, frame.image, 0, image.length);
+            frame.captureId = captureId;
+            frame.width = width;
+            frame.height = height;
+            frame.submittedAt = System.nanoTime();
+            pending = frame;
+            lock.notifyAll();
+        }
+    }
+
+    /** Counts a frame the caller chose not to submit. */
+    public void skip()
+    {
+        synchronized (lock) {
+            skipped++;
+        }
+    }
+
+    private void drain()
+    {
+        while (true) {
+            Frame frame;
+            synchronized (lock) {
+                while (running && null == pending) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                // a stop() and start() while this frame was processing hand over to a new worker
+                if (!running || worker != Thread.currentThread())
+                {
+                    return;
+                }
+                frame = pending;
+                pending = null;
+                long waited = System.nanoTime() - frame.submittedAt;
+                queueNanos += waited;
+                maxQueueNanos = Math.max(maxQueueNanos, waited);
+            }
+            long start = System.nanoTime();
+            try {
+                handler.process(frame.captureId, frame.image, frame.width, frame.height);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "frame processing failed", e);
+            }
+            synchronized (lock) {
+                processNanos += System.nanoTime() - start;
+                processed++;
+                free.add(frame);
+            }
+        }
+    }
+
+    public Stats getStats()
+    {
+        Stats stats = new Stats();
+        synchronized (lock) {
+            stats.submitted = submitted;
+            stats.processed = processed;
+            stats.dropped = dropped;
+            stats.skipped = skipped;
+            stats.avgQueueMs = processed > 0 ? queueNanos / 1e6 / processed : 0;
+            stats.maxQueueMs = maxQueueNanos / 1e6;
+            stats.avgProcessMs = processed > 0 ? processNanos / 1e6 / processed : 0;
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,275 @@
+package com.womenfirst;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.Map;
+
+/**
+ * Uploads one payload to an HTTP endpoint in fixed-size chunks and resumes after a dropped
+ * connection instead of starting over. Plain {@link HttpURLConnection}, so it runs the same on
+ * the device and on a JVM against a local stub server.
+ *
+ * <p>Protocol, one POST per chunk to {@code endpoint?upload_id=..&<fields>}:
+ * <ul>
+ * <li>chunk: body is the bytes, {@code Content-Range: bytes <first>-<last>/<total>}</li>
+ * <li>status query after a failure: empty body, {@code Content-Range: bytes *}{@code /<total>}</li>
+ * <li>server: 308 with {@code Range: bytes=0-<last received>} (no Range: nothing yet) while
+ * incomplete, 200 or 201 with its normal response once it has every byte</li>
+ * </ul>
+ * Fields go in the query string of every request, so the server can validate them on the
+ * first chunk and act on them on the last. A 308 that does not move the server past what it
+ * already held counts as a failed attempt, so a server stuck on one range cannot keep the
+ * uploader busy forever.
+ */
+public class ChunkedUploader {
+    public static final int DEFAULT_MAX_RETRIES = 5;
+    private static final int RESUME_INCOMPLETE = 308;
+    private static final long FIRST_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 8000;
+
+    public interface Listener {
+        void onProgress(String uploadId, long sent, long total);
+    }
+
+    public static class Result {
+        public String uploadId;
+        public long bytes;
+        public int chunks;
+        public int retries;
+        public int status;
+        public String response;
+        public long elapsedMs;
+    }
+
+    /** The server refused the upload (4xx/5xx after retries), or retries ran out. */
+    public static class UploadException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int status;
+
+        public UploadException(String message, int status) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final String endpoint;
+    private final int chunkSize;
+    private final int maxRetries;
+    private int connectTimeoutMs = 15000;
+    private int readTimeoutMs = 30000;
+
+    public ChunkedUploader(String endpoint, int chunkSize, int maxRetries)
+    {
+        this.endpoint = endpoint;
+        this.chunkSize = chunkSize;
+        this.maxRetries = maxRetries;
+    }
+
+    public void setTimeouts(int connectTimeoutMs, int readTimeoutMs)
+    {
+        this.connectTimeoutMs = connectTimeoutMs;
+        this.readTimeoutMs = readTimeoutMs;
+    }
+
+    public Result upload(String uploadId, byte[] data, String contentType, Map<String, String> fields, Listener listener)
+            throws IOException, InterruptedException
+    {
+        if (0 == data.length)
+        {
+            throw new IllegalArgumentException("nothing to upload");
+        }
+        long start = System.nanoTime();
+        URL url = new URL(endpoint + (endpoint.indexOf('?') < 0 ? "?" : "&") + query(uploadId, fields));
+        Result result = new Result();
+        result.uploadId = uploadId;
+        result.bytes = data.length;
+        int offset = 0;
+        // most bytes the server has confirmed; a 308 only counts as progress if it beats this
+        int confirmed = 0;
+        int failures = 0;
+        boolean resuming = false;
+        while (true) {
+            Response response;
+            boolean query = resuming;
+            try {
+                if (resuming)
+                {
+                    response = send(url, data, 0, 0, contentType);
+                    resuming = false;
+                }
+                else
+                {
+                    int length = Math.min(chunkSize, data.length - offset);
+                    response = send(url, data, offset, length, contentType);
+                    result.chunks++;
+                }
+            } catch (IOException e) {
+                // dropped connection or timeout: back off, then ask the server where it is
+                if (++failures > maxRetries)
+                {
+                    throw new UploadException("upload failed after " + maxRetries + " retries: " + e.getMessage(), -1);
+                }
+                result.retries++;
+                backoff(failures);
+                resuming = true;
+                continue;
+            }
+            if (response.status == 200 || response.status == 201)
+            {
+                result.status = response.status;
+                result.response = response.body;
+                result.elapsedMs = (System.nanoTime() - start) / 1000000;
+                if (null != listener)
+                {
+                    listener.onProgress(uploadId, data.length, data.length);
+                }
+                return result;
+            }
+            if (response.status == RESUME_INCOMPLETE)
+            {
+                if (response.received > confirmed)
+                {
+                    confirmed = response.received;
+                    failures = 0;
+                }
+                else if (query)
+                {
+                    // the failure that led to the query was already counted
+                }
+                else if (++failures > maxRetries)
+                {
+                    throw new UploadException("server stuck at " + response.received + " of " + data.length
+                            + " bytes after " + maxRetries + " retries", RESUME_INCOMPLETE);
+                }
+                else
+                {
+                    result.retries++;
+                }
+                offset = response.received;
+                if (offset >= data.length)
+                {
+                    // the server has every byte but did not finish; re-sending the last chunk lets it
+                    offset = Math.max(0, data.length - Math.min(chunkSize, data.length));
+                }
+                if (null != listener)
+                {
+                    listener.onProgress(uploadId, offset, data.length);
+                }
+                continue;
+            }
+            if (response.status >= 500 && ++failures <= maxRetries)
+            {
+                result.retries++;
+                backoff(failures);
+                resuming = true;
+                continue;
+            }
+            throw new UploadException("server answered " + response.status + ": " + response.body, response.status);
+        }
+    }
+
+    private static class Response {
+        int status;
+        /** bytes the server holds, from its Range header */
+        int received;
+        String body;
+    }
+
+    /** One request; {@code length == 0} is a status query. */
+    private Response send(URL url, byte[] data, int offset, int length, String contentType) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            connection.setRequestMethod("POST");
+            connection.setConnectTimeout(connectTimeoutMs);
+            connection.setReadTimeout(readTimeoutMs);
+            connection.setDoOutput(true);
+            connection.setUseCaches(false);
+            // 308 here means "resume incomplete", not a redirect
+            connection.setInstanceFollowRedirects(false);
+            connection.setRequestProperty("Content-Type", contentType);
+            connection.setRequestProperty("Accept", "application/json");
+            connection.setRequestProperty("Content-Range", 0 == length
+                    ? "bytes */" + data.length
+                    : "bytes " + offset + "-" + (offset + length - 1) + "/" + data.length);
+            connection.setFixedLengthStreamingMode(length);
+            OutputStream out = connection.getOutputStream();
+            try {
+                out.write(data, offset, length);
+            } finally {
+                out.close();
+            }
+            Response response = new Response();
+            response.status = connection.getResponseCode();
+            response.received = parseRange(connection.getHeaderField("Range"));
+            response.body = readBody(connection, response.status);
+            return response;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /** "bytes=0-N" means N + 1 bytes received; anything else means none. */
+    static int parseRange(String range)
+    {
+        if (null == range)
+        {
+            return 0;
+        }
+        int dash = range.lastIndexOf('-');
+        if (!range.startsWith("bytes=0-") || dash < 0)
+        {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(range.substring(dash + 1).trim()) + 1;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String readBody(HttpURLConnection connection, int status) throws IOException
+    {
+        InputStream in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+        if (null == in)
+        {
+            return "";
+        }
+        try {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+            }
+            return body.toString("UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String query(String uploadId, Map<String, String> fields) throws UnsupportedEncodingException
+    {
+        StringBuilder query = new StringBuilder("upload_id=").append(URLEncoder.encode(uploadId, "UTF-8"));
+        if (null != fields)
+        {
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                query.append('&').append(URLEncoder.encode(field.getKey(), "UTF-8"))
+                        .append('=').append(URLEncoder.encode(null == field.getValue() ? "" : field.getValue(), "UTF-8"));
+            }
+        }
+        return query.toString();
+    }
+
+    private static void backoff(int failures) throws InterruptedException
+    {
+        Thread.sleep(Math.min(MAX_BACKOFF_MS, FIRST_BACKOFF_MS << Math.min(failures - 1, 10)));
+    }
+}
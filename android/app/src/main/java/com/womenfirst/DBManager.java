@@ -4,44 +4,559 @@ package com.womenfirst;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import android.util.Base64;
 import android.util.Log;
+import com.womenfirst.util.TemplateUtils;
 
 
-public class DBManager {
+public class DBManager implements TemplateStore {
+    private static final String TAG = "DBManager";
+    /**
+     * Schema history:
+     * 1 - userinfo(pin, feature) with the template stored as Base64 text
+     * 2 - userinfo(pin, feature, feature_len) with the template stored as a raw blob
+     * 3 - unique index on userinfo.pin
+     * 4 - userchange log filled by triggers on userinfo
+     * 5 - userinfo.feature_crc
+     * 6 - userinfo.project_name, the site partition a user is identified in
+     * 7 - auditrun checkpoints and auditpair results of the duplicate audit
+     * 8 - templaterefresh log of templates replaced after high-scoring identifies
+     * 9 - userchange.project_name, so a synced change keeps its partition (deletes included)
+     */
+    static final int DB_VERSION = 9;
+    static final int TEMPLATE_BUFFER_SIZE = 2048;
+    static final int DEFAULT_PAGE_SIZE = 256;
+
+    public static final int CHANGE_INSERT = 1;
+    public static final int CHANGE_UPDATE = 2;
+    public static final int CHANGE_DELETE = 3;
+    /** project_name of users enrolled without a scope */
+    public static final String NO_PROJECT = "";
+
+    /** One row of a bulk load: the pin and the first {@code length} bytes of {@code feature}. */
+    public static class UserTemplate {
+        public final String pin;
+        public final String project;
+        public final byte[] feature;
+        public final int length;
+
+        public UserTemplate(String pin, byte[] feature, int length) {
+            this(pin, NO_PROJECT, feature, length);
+        }
+
+        public UserTemplate(String pin, String project, byte[] feature, int length) {
+            this.pin = pin;
+            this.project = null == project ? NO_PROJECT : project;
+            this.feature = feature;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Outcome of a bulk call. A conflicting row (pin already enrolled on insert, pin not
+     * found on update/delete) is listed in {@code conflicts} and does not abort the batch.
+     */
+    public static class BatchResult {
+        public int succeeded = 0;
+        public final List<String> conflicts = new ArrayList<String>();
+        public long elapsedNanos = 0;
+
+        public int total() {
+            return succeeded + conflicts.size();
+        }
+
+        public double rowsPerSecond() {
+            return elapsedNanos > 0 ? total() * 1e9 / elapsedNanos : 0;
+        }
+
+        @Override
+        public String toString() {
+            return "succeeded=" + succeeded + ", conflicts=" + conflicts.size()
+                    + ", ms=" + elapsedNanos / 1000000 + ", rows/s=" + (long) rowsPerSecond();
+        }
+    }
+
+    /**
+     * One entry of the change log. {@code feature} is the pin's current template, or null for
+     * a delete tombstone (and for an insert/update whose pin has since been deleted).
+     * {@code project} is the pin's project when the change was made.
+     */
+    public static class Change {
+        public final long seq;
+        public final String pin;
+        public final String project;
+        public final int op;
+        public final byte[] feature;
+
+        Change(long seq, String pin, String project, int op, byte[] feature) {
+            this.seq = seq;
+            this.pin = pin;
+            this.project = null == project ? NO_PROJECT : project;
+            this.op = op;
+            this.feature = feature;
+        }
+    }
+
+    /**
+     * Told once a queued write has committed ({@code error} null) or failed. Runs on the writer
+     * thread, or on the caller's if the queue is already closed, so keep it short.
+     */
+    public interface WriteListener<T> {
+        void onWritten(T result, Throwable error);
+    }
+
+    /** A suspected duplicate enrollment: two pins whose templates match, {@code pinA < pinB}. */
+    public static class DuplicatePair {
+        public final String pinA;
+        public final String pinB;
+        public final int score;
+
+        public DuplicatePair(String pinA, String pinB, int score) {
+            boolean ordered = pinA.compareTo(pinB) < 0;
+            this.pinA = ordered ? pinA : pinB;
+            this.pinB = ordered ? pinB : pinA;
+            this.score = score;
+        }
+    }
+
+    /**
+     * Checkpoint of one duplicate audit run. The gallery is cut into blocks of
+     * {@code blockSize} userinfo ids up to {@code maxId}; tiles before {@code nextTile} are done.
+     */
+    public static class AuditRun {
+        public final long run;
+        public final long maxId;
+        public final int blockSize;
+        public final int nextTile;
+        public final long compared;
+        public final long startedAt;
+        public final long finishedAt;
+
+        AuditRun(long run, long maxId, int blockSize, int nextTile, long compared, long startedAt, long finishedAt) {
+            this.run = run;
+            this.maxId = maxId;
+            this.blockSize = blockSize;
+            this.nextTile = nextTile;
+            this.compared = compared;
+            this.startedAt = startedAt;
+            this.finishedAt = finishedAt;
+        }
+
+        public boolean isFinished() {
+            return finishedAt > 0;
+        }
+    }
+
+    public static class ChangePage {
+        public final List<Change> changes = new ArrayList<Change>();
+        /** pass this back as {@code sinceSeq} to fetch the next page */
+        public long lastSeq;
+        public boolean hasMore;
+    }
+
     private String dbName;
     SQLiteDatabase db = null;
-    boolean bIsOpened = false;
+    volatile boolean bIsOpened = false;
+    private volatile SQLiteStatement existsStatement = null;
+    private volatile SQLiteStatement countStatement = null;
+    private boolean bWriteAheadLogging = false;
+    private final ExecutorService openExecutor = Executors.newSingleThreadExecutor();
+    private Future<Boolean> pendingOpen = null;
+    private DBWriteQueue writeQueue = null;
+
+    /**
+     * Opens the database, or waits for the open started by {@link #opendbAsync} on the same
+     * file, so that it is opened once and in the mode the async call asked for.
+     */
     public boolean opendb(String fileName)
+    {
+        Future<Boolean> pending;
+        synchronized (this)
+        {
+            pending = null != fileName && fileName.equals(dbName) ? pendingOpen : null;
+        }
+        if (null != pending)
+        {
+            awaitOpen(pending);
+        }
+        return opendb(fileName, bWriteAheadLogging);
+    }
+
+    /**
+     * @param writeAheadLogging open in WAL mode, so that lookups and gallery loads on other
+     *                          threads keep running while the write queue commits
+     */
+    public synchronized boolean opendb(String fileName, boolean writeAheadLogging)
     {
         if (bIsOpened)
         {
             return true;
         }
         dbName = fileName;
+        bWriteAheadLogging = writeAheadLogging;
         db = SQLiteDatabase.openOrCreateDatabase(dbName, null);
         if (null == db)
         {
             return false;
         }
-        String strSQL = "create table if not exists userinfo(id integer primary key autoincrement,pin text not null,feature text not null)";
-        db.execSQL(strSQL);
+        if (bWriteAheadLogging)
+        {
+            db.enableWriteAheadLogging();
+        }
+        upgrade();
+        existsStatement = db.compileStatement("select 1 from userinfo where pin=? limit 1");
+        countStatement = db.compileStatement("select count(*) from userinfo");
         bIsOpened = true;
         return true;
     }
 
+    /** Commits the writes already queued, stops the writer thread, then closes the database. */
+    public void close()
+    {
+        DBWriteQueue queue;
+        synchronized (this)
+        {
+            queue = writeQueue;
+            writeQueue = null;
+        }
+        // outside the lock: the writer may still need database() to finish its last group
+        if (null != queue)
+        {
+            queue.close();
+        }
+        synchronized (this)
+        {
+            if (!bIsOpened)
+            {
+                return;
+            }
+            bIsOpened = false;
+            existsStatement.close();
+            countStatement.close();
+            existsStatement = null;
+            countStatement = null;
+            db.close();
+            db = null;
+        }
+    }
+
+    /**
+     * Opens the database on a background thread so that a pending schema migration
+     * never runs on the caller's (usually the main) thread. Later calls to
+     * {@link #opendb(String)} wait for the migration to finish.
+     */
+    public synchronized Future<Boolean> opendbAsync(final String fileName, final boolean writeAheadLogging)
+    {
+        dbName = fileName;
+        bWriteAheadLogging = writeAheadLogging;
+        pendingOpen = openExecutor.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return opendb(fileName, writeAheadLogging);
+            }
+        });
+        return pendingOpen;
+    }
+
+    /** True once the database is open; never blocks, unlike the lookups that open it on demand. */
+    public boolean isOpened()
+    {
+        return bIsOpened;
+    }
+
+    private void awaitOpen(Future<Boolean> pending)
+    {
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.e(TAG, "open " + dbName + " failed", e.getCause());
+        }
+    }
+
+    SQLiteDatabase database()
+    {
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        return db;
+    }
+
+    private synchronized DBWriteQueue writeQueue()
+    {
+        if (null == writeQueue)
+        {
+            writeQueue = new DBWriteQueue(this);
+        }
+        return writeQueue;
+    }
+
+    /**
+     * Queues {@link #insertUser} on the writer thread, where it is group-committed with any
+     * other pending writes. The template is copied, so the caller may reuse its buffer.
+     */
+    public Future<Boolean> submitInsertUser(String pin, byte[] feature, int length)
+    {
+        return submitInsertUser(pin, NO_PROJECT, feature, length);
+    }
+
+    public Future<Boolean> submitInsertUser(String pin, String project, byte[] feature, int length)
+    {
+        return submitInsertUser(pin, project, feature, length, null);
+    }
+
+    /** As above, and tells {@code listener} once the row has committed. */
+    public Future<Boolean> submitInsertUser(final String pin, final String project, byte[] feature, final int length,
+                                            WriteListener<Boolean> listener)
+    {
+        final byte[] copy = Arrays.copyOf(feature, length);
+        return writeQueue().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return insertUser(pin, project, copy, length);
+            }
+        }, listener);
+    }
+
+    public Future<Boolean> submitModifyUser(final String pin, byte[] feature, final int length)
+    {
+        final byte[] copy = Arrays.copyOf(feature, length);
+        return writeQueue().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return modifyUser(pin, copy, length);
+            }
+        });
+    }
+
+    public Future<Boolean> submitDeleteUser(String pin)
+    {
+        return submitDeleteUser(pin, null);
+    }
+
+    public Future<Boolean> submitDeleteUser(final String pin, WriteListener<Boolean> listener)
+    {
+        return writeQueue().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return deleteUser(pin);
+            }
+        }, listener);
+    }
+
+    /** Queues {@link #clear} behind the writes already pending. */
+    public Future<Boolean> submitClear(WriteListener<Boolean> listener)
+    {
+        return writeQueue().submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return clear();
+            }
+        }, listener);
+    }
+
+    public Future<BatchResult> submitInsertUsers(final Collection<UserTemplate> users)
+    {
+        return writeQueue().submit(new Callable<BatchResult>() {
+            @Override
+            public BatchResult call() {
+                return insertUsers(users);
+            }
+        });
+    }
+
+    public Future<BatchResult> submitDeleteUsers(final Collection<String> pins)
+    {
+        return writeQueue().submit(new Callable<BatchResult>() {
+            @Override
+            public BatchResult call() {
+                return deleteUsers(pins);
+            }
+        });
+    }
+
+    private void upgrade()
+    {
+        int version = db.getVersion();
+        if (version >= DB_VERSION)
+        {
+            return;
+        }
+        Log.i(TAG, "upgrading database from version " + version + " to " + DB_VERSION);
+        db.beginTransaction();
+        try {
+            if (version < 1)
+            {
+                db.execSQL("create table if not exists userinfo(id integer primary key autoincrement,pin text not null,feature text not null)");
+            }
+            if (version < 2)
+            {
+                migrateToBlobFeature();
+            }
+            if (version < 3)
+            {
+                // keep the most recent enrollment of any pin registered twice before the index existed
+                db.execSQL("delete from userinfo where id not in (select max(id) from userinfo group by pin)");
+                db.execSQL("create unique index if not exists userinfo_pin on userinfo(pin)");
+            }
+            if (version < 4)
+            {
+                db.execSQL("create table userchange(seq integer primary key autoincrement,pin text not null,op integer not null)");
+                db.execSQL("create trigger userinfo_insert_log after insert on userinfo begin insert into userchange(pin, op) values(new.pin, " + CHANGE_INSERT + "); end");
+                db.execSQL("create trigger userinfo_update_log after update on userinfo begin insert into userchange(pin, op) values(new.pin, " + CHANGE_UPDATE + "); end");
+                db.execSQL("create trigger userinfo_delete_log after delete on userinfo begin insert into userchange(pin, op) values(old.pin, " + CHANGE_DELETE + "); end");
+                // existing rows become the first inserts, so a sync from sequence 0 sees the whole gallery
+                db.execSQL("insert into userchange(pin, op) select pin, " + CHANGE_INSERT + " from userinfo order by id");
+            }
+            if (version < 5)
+            {
+                addFeatureCrc();
+            }
+            if (version < 6)
+            {
+                db.execSQL("alter table userinfo add column project_name text not null default ''");
+                db.execSQL("create index if not exists userinfo_project on userinfo(project_name)");
+            }
+            if (version < 7)
+            {
+                db.execSQL("create table auditrun(run integer primary key autoincrement,max_id integer not null,block_size integer not null,"
+                        + "next_tile integer not null default 0,compared integer not null default 0,started_at integer not null,finished_at integer not null default 0)");
+                db.execSQL("create table auditpair(run integer not null,pin_a text not null,pin_b text not null,score integer not null,primary key(run, pin_a, pin_b))");
+            }
+            if (version < 8)
+            {
+                db.execSQL("create table templaterefresh(seq integer primary key autoincrement,pin text not null,score integer not null,"
+                        + "old_crc integer not null,new_crc integer not null,new_len integer not null,refreshed_at integer not null)");
+            }
+            if (version < 9)
+            {
+                addChangeProject();
+            }
+            db.setVersion(DB_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private void migrateToBlobFeature()
+    {
+        db.execSQL("create table userinfo_v2(id integer primary key autoincrement,pin text not null,feature blob not null,feature_len integer not null)");
+        Cursor cursor = db.rawQuery("select id, pin, feature from userinfo", null);
+        try {
+            ContentValues value = new ContentValues();
+            while (cursor.moveToNext()) {
+                byte[] feature;
+                try {
+                    feature = Base64.decode(cursor.getString(2), Base64.NO_WRAP);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, "drop undecodable template of [" + cursor.getString(1) + "]");
+                    continue;
+                }
+                value.clear();
+                value.put("id", cursor.getLong(0));
+                value.put("pin", cursor.getString(1));
+                value.put("feature", feature);
+                value.put("feature_len", feature.length);
+                db.insert("userinfo_v2", null, value);
+            }
+        } finally {
+            cursor.close();
+        }
+        db.execSQL("drop table userinfo");
+        db.execSQL("alter table userinfo_v2 rename to userinfo");
+    }
+
+    private void addFeatureCrc()
+    {
+        db.execSQL("alter table userinfo add column feature_crc integer not null default 0");
+        // backfilling the checksum is not a change clients need to sync
+        db.execSQL("drop trigger userinfo_update_log");
+        SQLiteStatement update = db.compileStatement("update userinfo set feature_crc=? where id=?");
+        Cursor cursor = db.rawQuery("select id, feature, feature_len from userinfo", null);
+        try {
+            while (cursor.moveToNext()) {
+                byte[] feature = cursor.getBlob(1);
+                update.bindLong(1, TemplateUtils.crc32(feature, Math.min(cursor.getInt(2), feature.length)));
+                update.bindLong(2, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            update.close();
+        }
+        db.execSQL("create trigger userinfo_update_log after update on userinfo begin insert into userchange(pin, op) values(new.pin, " + CHANGE_UPDATE + "); end");
+    }
+
+    private void addChangeProject()
+    {
+        db.execSQL("alter table userchange add column project_name text not null default ''");
+        // logged changes of users still enrolled take their current project; earlier deletes stay unscoped
+        db.execSQL("update userchange set project_name=ifnull((select u.project_name from userinfo u where u.pin=userchange.pin), '')");
+        db.execSQL("drop trigger userinfo_insert_log");
+        db.execSQL("drop trigger userinfo_update_log");
+        db.execSQL("drop trigger userinfo_delete_log");
+        db.execSQL("create trigger userinfo_insert_log after insert on userinfo begin insert into userchange(pin, project_name, op) values(new.pin, new.project_name, " + CHANGE_INSERT + "); end");
+        db.execSQL("create trigger userinfo_update_log after update on userinfo begin insert into userchange(pin, project_name, op) values(new.pin, new.project_name, " + CHANGE_UPDATE + "); end");
+        db.execSQL("create trigger userinfo_delete_log after delete on userinfo begin insert into userchange(pin, project_name, op) values(old.pin, old.project_name, " + CHANGE_DELETE + "); end");
+    }
+
     public boolean isUserExited(String pin)
     {
         if (!bIsOpened)
         {
             opendb(dbName);
         }
-        if (null == db)
+        // null until the open (possibly a migration on another thread) has finished
+        SQLiteStatement statement = existsStatement;
+        if (null == statement)
         {
             return false;
         }
-        Cursor cursor = db.query("userinfo", null, "pin=?", new String[] { pin }, null, null, null);
-        return cursor.getCount() > 0;
+        synchronized (statement) {
+            statement.bindString(1, pin);
+            try {
+                statement.simpleQueryForLong();
+                return true;
+            } catch (SQLiteDoneException e) {
+                return false;
+            } finally {
+                statement.clearBindings();
+            }
+        }
+    }
+
+    /** @return the pin's template trimmed to its stored length, or null if not enrolled */
+    public byte[] getTemplate(String pin)
+    {
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return null;
+        }
+        Cursor cursor = db.rawQuery("select feature, feature_len from userinfo where pin=?", new String[] { pin });
+        try {
+            return cursor.moveToFirst() ? trim(cursor.getBlob(0), cursor.getInt(1)) : null;
+        } finally {
+            cursor.close();
+        }
     }
 
     public boolean deleteUser(String pin)
@@ -74,7 +589,7 @@ public class DBManager {
         return true;
     }
 
-    public boolean modifyUser(String pin, String feature)
+    public boolean modifyUser(String pin, byte[] feature, int length)
     {
         if (!bIsOpened)
         {
@@ -85,26 +600,86 @@ public class DBManager {
             return false;
         }
         ContentValues value = new ContentValues();
-        value.put("feature", feature);
+        value.put("feature", trim(feature, length));
+        value.put("feature_len", length);
+        value.put("feature_crc", TemplateUtils.crc32(feature, length));
         db.update("userinfo", value, "pin=?", new String[] { pin });
         return true;
     }
 
-    public int getCount()
+    /**
+     * Replaces an enrolled template after a high-scoring identify and logs the replacement
+     * in templaterefresh, in one transaction.
+     *
+     * @param score the identify score that triggered the refresh
+     * @return false if the pin is no longer enrolled
+     */
+    public boolean refreshTemplate(String pin, byte[] feature, int length, int score)
     {
         if (!bIsOpened)
         {
             opendb(dbName);
         }
         if (null == db)
+        {
+            return false;
+        }
+        int newCrc = TemplateUtils.crc32(feature, length);
+        db.beginTransaction();
+        try {
+            Cursor cursor = db.rawQuery("select feature_crc from userinfo where pin=?", new String[] { pin });
+            int oldCrc;
+            try {
+                if (!cursor.moveToFirst())
+                {
+                    return false;
+                }
+                oldCrc = cursor.getInt(0);
+            } finally {
+                cursor.close();
+            }
+            ContentValues value = new ContentValues();
+            value.put("feature", trim(feature, length));
+            value.put("feature_len", length);
+            value.put("feature_crc", newCrc);
+            db.update("userinfo", value, "pin=?", new String[] { pin });
+            value.clear();
+            value.put("pin", pin);
+            value.put("score", score);
+            value.put("old_crc", oldCrc);
+            value.put("new_crc", newCrc);
+            value.put("new_len", length);
+            value.put("refreshed_at", System.currentTimeMillis());
+            db.insert("templaterefresh", null, value);
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public int getCount()
+    {
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        SQLiteStatement statement = countStatement;
+        if (null == statement)
         {
             return 0;
         }
-        Cursor cursor = db.query("userinfo", null, null, null, null, null, null);
-        return cursor.getCount();
+        synchronized (statement) {
+            return (int) statement.simpleQueryForLong();
+        }
+    }
+
+    public boolean insertUser(String pin, byte[] feature, int length)
+    {
+        return insertUser(pin, NO_PROJECT, feature, length);
     }
 
-    public boolean insertUser(String pin, String feature)
+    public boolean insertUser(String pin, String project, byte[] feature, int length)
     {
         if (!bIsOpened)
         {
@@ -116,64 +691,397 @@ public class DBManager {
         }
         ContentValues value = new ContentValues();
         value.put("pin", pin);
-        value.put("feature", feature);
-        db.insert("userinfo", null, value);
-        return true;
+        value.put("project_name", null == project ? NO_PROJECT : project);
+        value.put("feature", trim(feature, length));
+        value.put("feature_len", length);
+        value.put("feature_crc", TemplateUtils.crc32(feature, length));
+        return db.insert("userinfo", null, value) != -1;
     }
 
-    // public HashMap<String, String> queryUserList()
-    // {
-    //     if (!bIsOpened)
-    //     {
-    //         return null;
-    //     }
-    //     if (null == db)
-    //     {
-    //         return null;
-    //     }
-    //     Cursor cursor = db.query("userinfo", null, null, null, null, null, null);
-    //     if (cursor.getCount() == 0)
-    //     {
-    //         cursor.close();
-    //         return null;
-    //     }
-    //     HashMap<String, String> map = new HashMap<String, String>();
-    //     for (cursor.moveToFirst();!cursor.isAfterLast();cursor.moveToNext()) {
-    //        map.put(cursor.getString(cursor.getColumnIndex("pin")), cursor.getString(cursor.getColumnIndex("feature")));
-    //     }
-    //     cursor.close();
-    //     return map;
-    // }
-
-    public HashMap<String, String> queryUserList() {
-    if (!bIsOpened) {
-        return null;
-    }
-    if (null == db) {
-        return null;
-    }
-    Cursor cursor = db.query("userinfo", null, null, null, null, null, null);
-    if (cursor.getCount() == 0) {
-        cursor.close();
-        return null;
-    }
-
-    HashMap<String, String> map = new HashMap<String, String>();
-    int pinColumnIndex = cursor.getColumnIndex("pin");
-    int featureColumnIndex = cursor.getColumnIndex("feature");
-
-    // Check if the columns exist
-    if (pinColumnIndex != -1 && featureColumnIndex != -1) {
-        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-            map.put(cursor.getString(pinColumnIndex), cursor.getString(featureColumnIndex));
-        }
-    } else {
-        // Handle the case where one or both columns are not found (optional logging or error handling)
-        Log.e("DBManager", "Required columns not found in cursor.");
-    }
-
-    cursor.close();
-    return map;
-}
+    public BatchResult insertUsers(Collection<UserTemplate> users)
+    {
+        BatchResult result = new BatchResult();
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return result;
+        }
+        long start = System.nanoTime();
+        SQLiteStatement statement = db.compileStatement("insert or ignore into userinfo(pin, feature, feature_len, feature_crc, project_name) values(?, ?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (UserTemplate user : users) {
+                statement.bindString(1, user.pin);
+                statement.bindBlob(2, trim(user.feature, user.length));
+                statement.bindLong(3, user.length);
+                statement.bindLong(4, TemplateUtils.crc32(user.feature, user.length));
+                statement.bindString(5, user.project);
+                if (statement.executeInsert() != -1) {
+                    result.succeeded++;
+                } else {
+                    result.conflicts.add(user.pin);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        Log.i(TAG, "insertUsers: " + result);
+        return result;
+    }
+
+    public BatchResult modifyUsers(Collection<UserTemplate> users)
+    {
+        BatchResult result = new BatchResult();
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return result;
+        }
+        long start = System.nanoTime();
+        SQLiteStatement statement = db.compileStatement("update userinfo set feature=?, feature_len=?, feature_crc=? where pin=?");
+        db.beginTransaction();
+        try {
+            for (UserTemplate user : users) {
+                statement.bindBlob(1, trim(user.feature, user.length));
+                statement.bindLong(2, user.length);
+                statement.bindLong(3, TemplateUtils.crc32(user.feature, user.length));
+                statement.bindString(4, user.pin);
+                if (statement.executeUpdateDelete() > 0) {
+                    result.succeeded++;
+                } else {
+                    result.conflicts.add(user.pin);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        Log.i(TAG, "modifyUsers: " + result);
+        return result;
+    }
+
+    public BatchResult deleteUsers(Collection<String> pins)
+    {
+        BatchResult result = new BatchResult();
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return result;
+        }
+        long start = System.nanoTime();
+        SQLiteStatement statement = db.compileStatement("delete from userinfo where pin=?");
+        db.beginTransaction();
+        try {
+            for (String pin : pins) {
+                statement.bindString(1, pin);
+                if (statement.executeUpdateDelete() > 0) {
+                    result.succeeded++;
+                } else {
+                    result.conflicts.add(pin);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        Log.i(TAG, "deleteUsers: " + result);
+        return result;
+    }
+
+    private static byte[] trim(byte[] feature, int length)
+    {
+        return feature.length == length ? feature : Arrays.copyOf(feature, length);
+    }
+
+    /**
+     * Walks every enrolled template in id order, {@code pageSize} rows per query. The
+     * {@code feature} array handed to the visitor is one buffer reused for every row, so a
+     * visitor that keeps a template must copy it. Return false from the visitor to stop early.
+     *
+     * @return the number of rows visited
+     */
+    public int forEachTemplate(int pageSize, TemplateVisitor visitor)
+    {
+        return forEachTemplate(0, Long.MAX_VALUE, pageSize, visitor);
+    }
+
+    /** As {@link #forEachTemplate(int, TemplateVisitor)}, limited to ids in {@code (afterId, untilId]}. */
+    public int forEachTemplate(long afterId, long untilId, int pageSize, TemplateVisitor visitor)
+    {
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return 0;
+        }
+        byte[] buffer = new byte[TEMPLATE_BUFFER_SIZE];
+        String[] args = new String[] { String.valueOf(afterId), String.valueOf(untilId), String.valueOf(pageSize) };
+        int visited = 0;
+        while (true) {
+            Cursor cursor = db.rawQuery("select id, pin, feature, feature_len, feature_crc, project_name from userinfo where id>? and id<=? order by id limit ?", args);
+            int rows = 0;
+            long lastId = 0;
+            try {
+                while (cursor.moveToNext()) {
+                    rows++;
+                    lastId = cursor.getLong(0);
+                    byte[] feature = cursor.getBlob(2);
+                    int length = Math.min(cursor.getInt(3), feature.length);
+                    if (length > buffer.length) {
+                        buffer = new byte[length];
+                    }
+                    System.arraycopy(feature, 0, buffer, 0, length);
+                    Arrays.fill(buffer, length, buffer.length, (byte) 0);
+                    visited++;
+                    if (!visitor.visit(cursor.getString(1), cursor.getString(5), buffer, length, cursor.getInt(4))) {
+                        return visited;
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            if (rows < pageSize) {
+                return visited;
+            }
+            args[0] = String.valueOf(lastId);
+        }
+    }
+
+    /** @return the highest userinfo id, 0 for an empty table */
+    public long getMaxUserId()
+    {
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return 0;
+        }
+        Cursor cursor = db.rawQuery("select ifnull(max(id), 0) from userinfo", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /** @return the most recent duplicate audit run, finished or not, or null if none ever ran */
+    public AuditRun getLastAuditRun()
+    {
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return null;
+        }
+        Cursor cursor = db.rawQuery("select run, max_id, block_size, next_tile, compared, started_at, finished_at from auditrun order by run desc limit 1", null);
+        try {
+            if (!cursor.moveToFirst())
+            {
+                return null;
+            }
+            return new AuditRun(cursor.getLong(0), cursor.getLong(1), cursor.getInt(2), cursor.getInt(3),
+                    cursor.getLong(4), cursor.getLong(5), cursor.getLong(6));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    public AuditRun startAuditRun(long maxId, int blockSize)
+    {
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        ContentValues value = new ContentValues();
+        value.put("max_id", maxId);
+        value.put("block_size", blockSize);
+        value.put("started_at", now);
+        long run = db.insert("auditrun", null, value);
+        return run == -1 ? null : new AuditRun(run, maxId, blockSize, 0, 0, now, 0);
+    }
+
+    /**
+     * Stores the pairs found by finished tiles and moves the checkpoint, in one transaction so
+     * a resumed run never skips a tile whose pairs were lost.
+     */
+    public boolean saveAuditProgress(long run, Collection<DuplicatePair> pairs, int nextTile, long compared, boolean finished)
+    {
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return false;
+        }
+        SQLiteStatement statement = db.compileStatement("insert or replace into auditpair(run, pin_a, pin_b, score) values(?, ?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (DuplicatePair pair : pairs) {
+                statement.bindLong(1, run);
+                statement.bindString(2, pair.pinA);
+                statement.bindString(3, pair.pinB);
+                statement.bindLong(4, pair.score);
+                statement.executeInsert();
+            }
+            ContentValues value = new ContentValues();
+            value.put("next_tile", nextTile);
+            value.put("compared", compared);
+            if (finished)
+            {
+                value.put("finished_at", System.currentTimeMillis());
+            }
+            db.update("auditrun", value, "run=?", new String[] { String.valueOf(run) });
+            db.setTransactionSuccessful();
+            return true;
+        } finally {
+            db.endTransaction();
+            statement.close();
+        }
+    }
+
+    /** Suspected duplicates of one audit run, highest score first. */
+    public List<DuplicatePair> getAuditPairs(long run, int limit)
+    {
+        List<DuplicatePair> pairs = new ArrayList<DuplicatePair>();
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return pairs;
+        }
+        Cursor cursor = db.rawQuery("select pin_a, pin_b, score from auditpair where run=? order by score desc limit ?",
+                new String[] { String.valueOf(run), String.valueOf(limit) });
+        try {
+            while (cursor.moveToNext()) {
+                pairs.add(new DuplicatePair(cursor.getString(0), cursor.getString(1), cursor.getInt(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return pairs;
+    }
+
+    /**
+     * Returns up to {@code pageSize} changes with a sequence number greater than
+     * {@code sinceSeq}, oldest first. Start from 0 for a full sync.
+     */
+    public ChangePage getChangesSince(long sinceSeq, int pageSize)
+    {
+        ChangePage page = new ChangePage();
+        page.lastSeq = sinceSeq;
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return page;
+        }
+        Cursor cursor = db.rawQuery("select c.seq, c.pin, c.op, u.feature, u.feature_len, c.project_name from userchange c left join userinfo u on u.pin=c.pin"
+                + " where c.seq>? order by c.seq limit ?", new String[] { String.valueOf(sinceSeq), String.valueOf(pageSize + 1) });
+        try {
+            while (cursor.moveToNext()) {
+                if (page.changes.size() == pageSize) {
+                    page.hasMore = true;
+                    break;
+                }
+                int op = cursor.getInt(2);
+                byte[] feature = null;
+                if (op != CHANGE_DELETE && !cursor.isNull(3)) {
+                    feature = trim(cursor.getBlob(3), cursor.getInt(4));
+                }
+                Change change = new Change(cursor.getLong(0), cursor.getString(1), cursor.getString(5), op, feature);
+                page.changes.add(change);
+                page.lastSeq = change.seq;
+            }
+        } finally {
+            cursor.close();
+        }
+        return page;
+    }
+
+    public long getLastChangeSeq()
+    {
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return 0;
+        }
+        Cursor cursor = db.rawQuery("select ifnull(max(seq), 0) from userchange", null);
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Drops every change that a later change to the same pin supersedes. Sequence numbers
+     * are not reused, so a client holding any older sequence still gets a correct delta.
+     */
+    public int compactChanges()
+    {
+        if (!bIsOpened)
+        {
+            opendb(dbName);
+        }
+        if (null == db)
+        {
+            return 0;
+        }
+        return db.delete("userchange", "seq not in (select max(seq) from userchange group by pin)", null);
+    }
+
+    /** Compatibility wrapper over {@link #forEachTemplate}; copies the whole table into memory. */
+    public HashMap<String, byte[]> queryUserList() {
+        if (!bIsOpened) {
+            return null;
+        }
+        if (null == db) {
+            return null;
+        }
+        final HashMap<String, byte[]> map = new HashMap<String, byte[]>();
+        forEachTemplate(DEFAULT_PAGE_SIZE, new TemplateVisitor() {
+            @Override
+            public boolean visit(String pin, String project, byte[] feature, int length, int crc) {
+                map.put(pin, Arrays.copyOf(feature, length));
+                return true;
+            }
+        });
+        return map.isEmpty() ? null : map;
+    }
 
 }
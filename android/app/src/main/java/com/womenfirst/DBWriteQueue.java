@@ -0,0 +1,205 @@
+package com.womenfirst;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Single writer thread for {@link DBManager}. Writes are queued from any thread and the
+ * writer drains whatever has piled up (up to {@link #MAX_GROUP_SIZE}) into one transaction,
+ * so a burst of enrollments costs one commit. A write's future only completes once the
+ * transaction holding it has committed, and its {@link DBManager.WriteListener}, if any, is
+ * told then, so callers need not block on the future.
+ */
+class DBWriteQueue {
+    private static final String TAG = "DBWriteQueue";
+    static final int MAX_GROUP_SIZE = 64;
+
+    private final DBManager dbManager;
+    private final BlockingQueue<PendingWrite<?>> queue = new LinkedBlockingQueue<PendingWrite<?>>();
+    private final Thread writer;
+    /** queued by {@link #close}; everything before it is still written */
+    private final PendingWrite<Void> stop = new PendingWrite<Void>(new Callable<Void>() {
+        @Override
+        public Void call() {
+            return null;
+        }
+    }, null);
+    private boolean closed = false;
+
+    DBWriteQueue(DBManager dbManager)
+    {
+        this.dbManager = dbManager;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "DBWriteQueue");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    <T> Future<T> submit(Callable<T> write)
+    {
+        return submit(write, null);
+    }
+
+    <T> Future<T> submit(Callable<T> write, DBManager.WriteListener<T> listener)
+    {
+        PendingWrite<T> pending = new PendingWrite<T>(write, listener);
+        synchronized (queue)
+        {
+            if (closed)
+            {
+                pending.fail(new IllegalStateException("write queue is closed"));
+                return pending;
+            }
+            queue.add(pending);
+        }
+        return pending;
+    }
+
+    /** Lets the writes queued so far commit, then stops the writer thread. */
+    void close()
+    {
+        synchronized (queue)
+        {
+            if (closed)
+            {
+                return;
+            }
+            closed = true;
+            queue.add(stop);
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void drain()
+    {
+        List<PendingWrite<?>> group = new ArrayList<PendingWrite<?>>(MAX_GROUP_SIZE);
+        while (true) {
+            try {
+                group.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(group, MAX_GROUP_SIZE - 1);
+            // nothing is queued after stop, so it can only be the last entry
+            boolean stopping = group.remove(stop);
+            if (!group.isEmpty())
+            {
+                runGroup(group);
+            }
+            group.clear();
+            if (stopping)
+            {
+                return;
+            }
+        }
+    }
+
+    private void runGroup(List<PendingWrite<?>> group)
+    {
+        SQLiteDatabase db = dbManager.database();
+        if (null == db)
+        {
+            for (PendingWrite<?> pending : group) {
+                pending.fail(new IllegalStateException("database is not open"));
+            }
+            return;
+        }
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                for (PendingWrite<?> pending : group) {
+                    pending.execute();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            for (PendingWrite<?> pending : group) {
+                pending.complete();
+            }
+        } catch (Exception e) {
+            // one write took the whole group down; replay them one by one so only it fails
+            Log.w(TAG, "group of " + group.size() + " writes failed, retrying individually", e);
+            for (PendingWrite<?> pending : group) {
+                runAlone(db, pending);
+            }
+        }
+    }
+
+    private void runAlone(SQLiteDatabase db, PendingWrite<?> pending)
+    {
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                pending.execute();
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            pending.complete();
+        } catch (Exception e) {
+            Log.e(TAG, "write failed", e);
+            pending.fail(e);
+        }
+    }
+
+    private static class PendingWrite<T> extends FutureTask<T> {
+        private final Callable<T> write;
+        private final DBManager.WriteListener<T> listener;
+        private T result;
+
+        PendingWrite(Callable<T> write, DBManager.WriteListener<T> listener) {
+            super(write);
+            this.write = write;
+            this.listener = listener;
+        }
+
+        void execute() throws Exception {
+            result = write.call();
+        }
+
+        void complete() {
+            set(result);
+        }
+
+        void fail(Throwable t) {
+            setException(t);
+        }
+
+        @Override
+        protected void done() {
+            if (null == listener) {
+                return;
+            }
+            try {
+                listener.onWritten(get(), null);
+            } catch (ExecutionException e) {
+                listener.onWritten(null, e.getCause());
+            } catch (CancellationException e) {
+                listener.onWritten(null, e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // cannot happen once done
+            } catch (RuntimeException e) {
+                Log.e(TAG, "write listener failed", e);
+            }
+        }
+    }
+}
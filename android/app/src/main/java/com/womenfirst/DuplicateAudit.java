@@ -0,0 +1,275 @@
+package com.womenfirst;
+
+import com.zkteco.android.biometric.core.utils.LogHelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline audit for duplicate enrollments: identifies every stored template against the
+ * loaded gallery and records in {@code auditpair} the other users among its top
+ * {@link #CANDIDATES} candidates. That is one 1:N identify per user instead of n(n-1)/2
+ * verifies, which the SDK's own search keeps within a night at 50k users.
+ *
+ * <p>The users are cut into tiles of {@code blockSize} userinfo ids, worked on by a pool of
+ * {@code workers}. The checkpoint in {@code auditrun} is the first tile not yet finished, saved
+ * together with the pairs of the tiles before it. An interrupted run resumes from there; ids
+ * enrolled after the run started are left to the enrollment-time duplicate check.
+ *
+ * <p>The gallery must be fully loaded before {@link #start}, or users missing from it are never
+ * reported. {@link DBManager.DuplicatePair} puts the smaller pin first, so a pair found from
+ * both sides is kept once. Only {@link TemplateMatcher#identify} is used, from the pool's threads, so the
+ * matcher must be safe to call concurrently; over {@link ZKFingerServiceMatcher} each identify
+ * waits its turn for the SDK lock, so live identification waits behind at most one of them.
+ */
+public class DuplicateAudit {
+    public static final int DEFAULT_BLOCK_SIZE = 1024;
+    public static final int DUPLICATE_THRESHOLD = FingerprintEngine.IDENTIFY_THRESHOLD;
+    /** candidates asked for per template; the template itself is normally one of them */
+    public static final int CANDIDATES = 10;
+
+    public interface Listener {
+        void onProgress(Stats stats);
+
+        void onFinished(Stats stats);
+    }
+
+    public static class Stats {
+        public long run;
+        public int tiles;
+        public int tilesDone;
+        /** tiles already done when this session picked the run up */
+        public int resumedFrom;
+        /** templates identified */
+        public long compared;
+        public int pairs;
+        public long elapsedMs;
+        public boolean finished;
+
+        @Override
+        public String toString() {
+            return "run=" + run + " tiles=" + tilesDone + "/" + tiles + " resumedFrom=" + resumedFrom
+                    + " compared=" + compared + " pairs=" + pairs + " elapsed=" + elapsedMs + "ms finished=" + finished;
+        }
+    }
+
+    private static class Block {
+        final List<String> pins = new ArrayList<String>();
+        final List<byte[]> templates = new ArrayList<byte[]>();
+    }
+
+    private static class TileResult {
+        final int tile;
+        final List<DBManager.DuplicatePair> pairs = new ArrayList<DBManager.DuplicatePair>();
+        long compared = 0;
+
+        TileResult(int tile) {
+            this.tile = tile;
+        }
+    }
+
+    private final DBManager db;
+    private final TemplateMatcher matcher;
+    private final int workers;
+    private final int blockSize;
+    private final Listener listener;
+    private final PinIndex pins = new PinIndex();
+    private volatile boolean cancelled = false;
+    private volatile boolean running = false;
+
+    public DuplicateAudit(DBManager db, TemplateMatcher matcher, int workers, Listener listener)
+    {
+        this(db, matcher, workers, DEFAULT_BLOCK_SIZE, listener);
+    }
+
+    public DuplicateAudit(DBManager db, TemplateMatcher matcher, int workers, int blockSize, Listener listener)
+    {
+        this.db = db;
+        this.matcher = matcher;
+        this.workers = Math.max(1, workers);
+        this.blockSize = blockSize;
+        this.listener = listener;
+    }
+
+    /**
+     * Runs the audit on a background thread, resuming the last unfinished run unless
+     * {@code restart} is set.
+     */
+    public synchronized void start(final boolean restart)
+    {
+        if (running)
+        {
+            return;
+        }
+        running = true;
+        cancelled = false;
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    audit(restart);
+                } finally {
+                    running = false;
+                }
+            }
+        }, "DuplicateAudit").start();
+    }
+
+    /** Stops after the tiles in progress; the checkpoint keeps everything finished so far. */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    private void audit(boolean restart)
+    {
+        long start = System.nanoTime();
+        DBManager.AuditRun run = db.getLastAuditRun();
+        if (restart || null == run || run.isFinished())
+        {
+            run = db.startAuditRun(db.getMaxUserId(), blockSize);
+            if (null == run)
+            {
+                LogHelper.e("start duplicate audit failed");
+                return;
+            }
+        }
+        int tiles = (int) ((run.maxId + run.blockSize - 1) / run.blockSize);
+        Stats stats = new Stats();
+        stats.run = run.run;
+        stats.tiles = tiles;
+        stats.tilesDone = run.nextTile;
+        stats.resumedFrom = run.nextTile;
+        stats.compared = run.compared;
+        LogHelper.d("duplicate audit " + (run.nextTile > 0 ? "resumed: " : "started: ") + stats);
+
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        CompletionService<TileResult> completion = new ExecutorCompletionService<TileResult>(pool);
+        Map<Integer, TileResult> done = new HashMap<Integer, TileResult>();
+        int next = run.nextTile;
+        int inFlight = 0;
+        try {
+            while (stats.tilesDone < tiles && !cancelled) {
+                while (next < tiles && inFlight < workers * 2) {
+                    completion.submit(tileTask(next, run));
+                    next++;
+                    inFlight++;
+                }
+                TileResult result = completion.take().get();
+                inFlight--;
+                if (null == result)
+                {
+                    break; // cancelled mid-tile
+                }
+                done.put(result.tile, result);
+                // the checkpoint only moves over a contiguous run of finished tiles
+                List<DBManager.DuplicatePair> pairs = new ArrayList<DBManager.DuplicatePair>();
+                boolean advanced = false;
+                while (done.containsKey(stats.tilesDone)) {
+                    TileResult finished = done.remove(stats.tilesDone);
+                    pairs.addAll(finished.pairs);
+                    stats.compared += finished.compared;
+                    stats.tilesDone++;
+                    advanced = true;
+                }
+                if (advanced)
+                {
+                    stats.pairs += pairs.size();
+                    stats.finished = stats.tilesDone == tiles;
+                    db.saveAuditProgress(run.run, pairs, stats.tilesDone, stats.compared, stats.finished);
+                    stats.elapsedMs = (System.nanoTime() - start) / 1000000;
+                    listener.onProgress(stats);
+                }
+            }
+            if (tiles == 0)
+            {
+                stats.finished = true;
+                db.saveAuditProgress(run.run, new ArrayList<DBManager.DuplicatePair>(), 0, 0, true);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LogHelper.e("duplicate audit failed: " + e.getCause());
+        } finally {
+            pool.shutdownNow();
+            try {
+                pool.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        stats.elapsedMs = (System.nanoTime() - start) / 1000000;
+        LogHelper.d("duplicate audit stopped: " + stats);
+        listener.onFinished(stats);
+    }
+
+    private Callable<TileResult> tileTask(final int tile, final DBManager.AuditRun run)
+    {
+        return new Callable<TileResult>() {
+            @Override
+            public TileResult call() {
+                return identifyTile(tile, block(tile, run));
+            }
+        };
+    }
+
+    private TileResult identifyTile(int tile, Block block)
+    {
+        TileResult result = new TileResult(tile);
+        IdentifyResult candidates = new IdentifyResult(CANDIDATES);
+        for (int i = 0; i < block.templates.size(); i++) {
+            if (cancelled)
+            {
+                return null;
+            }
+            String pin = block.pins.get(i);
+            candidates.clear();
+            int ret = matcher.identify(block.templates.get(i), candidates.buffer, DUPLICATE_THRESHOLD, CANDIDATES);
+            result.compared++;
+            if (ret <= 0)
+            {
+                continue;
+            }
+            candidates.parse(pins, ret);
+            for (int c = 0; c < candidates.count(); c++) {
+                String other = candidates.pin(pins, c);
+                if (null == other || other.equals(pin) || candidates.scores[c] < DUPLICATE_THRESHOLD)
+                {
+                    continue;
+                }
+                result.pairs.add(new DBManager.DuplicatePair(pin, other, candidates.scores[c]));
+            }
+        }
+        return result;
+    }
+
+    private Block block(int index, DBManager.AuditRun run)
+    {
+        final Block block = new Block();
+        long afterId = (long) index * run.blockSize;
+        db.forEachTemplate(afterId, Math.min(afterId + run.blockSize, run.maxId), DBManager.DEFAULT_PAGE_SIZE,
+                new TemplateStore.TemplateVisitor() {
+                    @Override
+                    public boolean visit(String pin, String project, byte[] feature, int length, int crc) {
+                        block.pins.add(pin);
+                        block.templates.add(feature.clone());
+                        return true;
+                    }
+                });
+        return block;
+    }
+}
@@ -0,0 +1,260 @@
+package com.womenfirst;
+
+/**
+ * One enrollment in progress: the pin being enrolled, the samples pressed so far and how well
+ * each pair of them agrees. Safe to drive from the SDK callback thread while the UI cancels it.
+ *
+ * <p>A sample that agrees with none of the others is not a reason to start over. The session
+ * keeps {@code requiredSamples} plus {@link #SPARE_SLOTS} samples; once full, the sample with
+ * the lowest total agreement is dropped and the user presses again. The session is ready once
+ * {@code requiredSamples} samples all match each other, and {@link #merge} then combines the
+ * best agreeing three of them.
+ */
+public class EnrollmentSession {
+    public static final int DEFAULT_SAMPLES = 3;
+    /**
+     * The SDK merges exactly three templates, so more required samples do not put more
+     * presses into the enrolled template; they only demand that more presses agree before
+     * the best three are merged.
+     */
+    public static final int MAX_SAMPLES = 8;
+    /** extra samples kept so one poor press can be outvoted instead of restarting */
+    public static final int SPARE_SLOTS = 2;
+    /** presses allowed per required sample before the session gives up */
+    private static final int PRESSES_PER_SAMPLE = 3;
+
+    public enum Status {
+        /** sample kept, more are needed */
+        NEED_MORE,
+        /** the sample matched none of the others, or the set was full and the poorest was dropped */
+        REJECTED,
+        /** enough mutually matching samples; call {@link #merge} */
+        READY,
+        /** too many presses without enough matching samples */
+        FAILED,
+        /** the session was cancelled or has already merged */
+        CLOSED
+    }
+
+    private final String pin;
+    private final String project;
+    private final int requiredSamples;
+    private final int capacity;
+    private final byte[][] samples;
+    /** scores[i][j]: verify score of samples i and j, &lt;= 0 when they do not match */
+    private final int[][] scores;
+    private int size = 0;
+    private int presses = 0;
+    private boolean closed = false;
+    private final int[] best = new int[3];
+
+    public EnrollmentSession(String pin, String project, int requiredSamples)
+    {
+        this.pin = pin;
+        this.project = null == project ? DBManager.NO_PROJECT : project;
+        this.requiredSamples = clampSamples(requiredSamples);
+        capacity = this.requiredSamples + SPARE_SLOTS;
+        // one scratch slot, so a new sample competes with the kept ones before one is dropped
+        samples = new byte[capacity + 1][FingerprintEngine.TEMPLATE_SIZE];
+        scores = new int[capacity + 1][capacity + 1];
+    }
+
+    /** {@code requiredSamples} limited to {@link #DEFAULT_SAMPLES}..{@link #MAX_SAMPLES}. */
+    public static int clampSamples(int requiredSamples)
+    {
+        return Math.max(DEFAULT_SAMPLES, Math.min(MAX_SAMPLES, requiredSamples));
+    }
+
+    public String getPin()
+    {
+        return pin;
+    }
+
+    public String getProject()
+    {
+        return project;
+    }
+
+    public int getRequiredSamples()
+    {
+        return requiredSamples;
+    }
+
+    /** @return how many more matching samples are needed */
+    public synchronized int remaining()
+    {
+        return Math.max(0, requiredSamples - agreeing());
+    }
+
+    public synchronized void cancel()
+    {
+        closed = true;
+    }
+
+    public synchronized boolean isClosed()
+    {
+        return closed;
+    }
+
+    /** Adds one pressed sample, verifying it against every sample kept so far. */
+    public synchronized Status offer(TemplateMatcher matcher, byte[] template)
+    {
+        if (closed)
+        {
+            return Status.CLOSED;
+        }
+        presses++;
+        int slot = size++;
+        System.arraycopy(template, 0, samples[slot], 0, FingerprintEngine.TEMPLATE_SIZE);
+        boolean matched = size == 1;
+        for (int i = 0; i < slot; i++) {
+            int score = matcher.verify(samples[i], samples[slot]);
+            scores[i][slot] = score;
+            scores[slot][i] = score;
+            matched |= score > 0;
+        }
+        scores[slot][slot] = 0;
+        boolean dropped = false;
+        if (size > capacity)
+        {
+            drop(poorest());
+            dropped = true;
+        }
+        if (agreeing() >= requiredSamples)
+        {
+            return Status.READY;
+        }
+        if (presses >= requiredSamples * PRESSES_PER_SAMPLE)
+        {
+            closed = true;
+            return Status.FAILED;
+        }
+        return dropped || !matched ? Status.REJECTED : Status.NEED_MORE;
+    }
+
+    /**
+     * Merges the three agreeing samples with the highest pairwise scores and closes the
+     * session. Returns the matcher's merge result, &lt;= 0 on failure or if not ready.
+     */
+    public synchronized int merge(TemplateMatcher matcher, byte[] out)
+    {
+        if (closed || agreeing() < requiredSamples || !pickBestTriple())
+        {
+            return 0;
+        }
+        closed = true;
+        return matcher.merge(samples[best[0]], samples[best[1]], samples[best[2]], out);
+    }
+
+    /** The sample with the lowest total agreement with the others. */
+    private int poorest()
+    {
+        int poorest = 0;
+        int poorestTotal = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            int total = total(i);
+            if (total < poorestTotal)
+            {
+                poorest = i;
+                poorestTotal = total;
+            }
+        }
+        return poorest;
+    }
+
+    /** Removes sample {@code slot} by moving the last sample into its place. */
+    private void drop(int slot)
+    {
+        int last = --size;
+        if (slot != last)
+        {
+            System.arraycopy(samples[last], 0, samples[slot], 0, FingerprintEngine.TEMPLATE_SIZE);
+            for (int i = 0; i < size; i++) {
+                scores[slot][i] = scores[last][i];
+                scores[i][slot] = scores[i][last];
+            }
+            scores[slot][slot] = 0;
+        }
+    }
+
+    private int total(int slot)
+    {
+        int total = 0;
+        for (int i = 0; i < size; i++) {
+            total += Math.max(0, scores[slot][i]);
+        }
+        return total;
+    }
+
+    /**
+     * Size of a set of samples that all match each other, built greedily from the samples
+     * with the highest total agreement.
+     */
+    private int agreeing()
+    {
+        boolean[] chosen = new boolean[size];
+        int count = 0;
+        for (int round = 0; round < size; round++) {
+            int next = -1;
+            int nextTotal = -1;
+            for (int i = 0; i < size; i++) {
+                if (chosen[i] || !matchesAll(i, chosen))
+                {
+                    continue;
+                }
+                int total = total(i);
+                if (total > nextTotal)
+                {
+                    next = i;
+                    nextTotal = total;
+                }
+            }
+            if (next < 0)
+            {
+                break;
+            }
+            chosen[next] = true;
+            count++;
+        }
+        return count;
+    }
+
+    private boolean matchesAll(int candidate, boolean[] chosen)
+    {
+        for (int i = 0; i < size; i++) {
+            if (chosen[i] && scores[i][candidate] <= 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean pickBestTriple()
+    {
+        int bestTotal = 0;
+        for (int a = 0; a < size; a++) {
+            for (int b = a + 1; b < size; b++) {
+                if (scores[a][b] <= 0)
+                {
+                    continue;
+                }
+                for (int c = b + 1; c < size; c++) {
+                    if (scores[a][c] <= 0 || scores[b][c] <= 0)
+                    {
+                        continue;
+                    }
+                    int total = scores[a][b] + scores[a][c] + scores[b][c];
+                    if (total > bestTotal)
+                    {
+                        bestTotal = total;
+                        best[0] = a;
+                        best[1] = b;
+                        best[2] = c;
+                    }
+                }
+            }
+        }
+        return bestTotal > 0;
+    }
+}
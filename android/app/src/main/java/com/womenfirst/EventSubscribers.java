@@ -0,0 +1,58 @@
+package com.womenfirst;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JS subscriber counts per event name, so native can skip producing events nobody listens to.
+ *
+ * <p>{@code NativeEventEmitter} reports each new subscription by name ({@link #add}) but
+ * removals only as a count ({@link #removeAny}). {@code src/utils/ZKTecoEvents.js} therefore
+ * also names the event it unsubscribed from ({@link #release}). Subscriptions made without that
+ * helper are never released by name and keep the event alive, which costs work but never
+ * drops an event someone is waiting for. Once every subscription is gone all counts reset.
+ */
+public class EventSubscribers {
+    private final Map<String, Integer> counts = new HashMap<String, Integer>();
+    private int total = 0;
+
+    public synchronized void add(String eventName)
+    {
+        Integer count = counts.get(eventName);
+        counts.put(eventName, null == count ? 1 : count + 1);
+        total++;
+    }
+
+    public synchronized void release(String eventName)
+    {
+        Integer count = counts.get(eventName);
+        if (null == count || count <= 1)
+        {
+            counts.remove(eventName);
+        }
+        else
+        {
+            counts.put(eventName, count - 1);
+        }
+    }
+
+    public synchronized void removeAny(int count)
+    {
+        total = Math.max(0, total - count);
+        if (0 == total)
+        {
+            counts.clear();
+        }
+    }
+
+    public synchronized boolean has(String eventName)
+    {
+        return counts.containsKey(eventName);
+    }
+
+    public synchronized int count(String eventName)
+    {
+        Integer count = counts.get(eventName);
+        return null == count ? 0 : count;
+    }
+}
@@ -0,0 +1,457 @@
+package com.womenfirst;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Enrollment and identification logic behind the sensor's extract callback. It only talks to
+ * a {@link TemplateMatcher} and a {@link Listener}, so with a {@link SimulatedTemplateMatcher}
+ * the whole flow runs on a plain JVM.
+ *
+ * <p>Every gallery user belongs to a project (site). With a scope set through
+ * {@link #setScope}, identification only accepts users of that project: a
+ * {@link PartitionedTemplateMatcher} searches just that partition, any other matcher is asked
+ * for {@link #SCOPE_CANDIDATES} candidates and the best in-scope one wins. The ZKTeco SDK has
+ * one process-wide gallery, so over it a scope is a filter, not a smaller search: a scoped
+ * identify costs the same as an unscoped one. If every candidate returned is out of scope the
+ * search is repeated with more candidates, up to {@link #SCOPE_MAX_CANDIDATES}.
+ *
+ * <p>{@link #identify} returns the top-N candidates as {@link PinIndex} ids and scores in a
+ * caller-owned {@link IdentifyResult}; the capture path reuses one and allocates nothing to
+ * read a match.
+ */
+public class FingerprintEngine {
+    public static final int TEMPLATE_SIZE = 2048;
+    public static final int IDENTIFY_THRESHOLD = 70;
+    /** candidates requested from an unpartitioned matcher when identifying within a scope */
+    public static final int SCOPE_CANDIDATES = 10;
+    /** most candidates a scoped identify over a shared gallery asks for before giving up */
+    public static final int SCOPE_MAX_CANDIDATES = 40;
+
+    public interface Listener {
+        /** Human readable outcome of the last press. */
+        void onResult(String message);
+
+        /**
+         * A new template was merged and added to the gallery; persist it, without blocking the
+         * capture thread, and call {@link #enrollStored} once that has succeeded or failed.
+         */
+        void onEnrolled(String pin, String project, byte[] template, int length);
+    }
+
+    private static class GalleryUpdate {
+        final String pin;
+        final byte[] template;
+
+        GalleryUpdate(String pin, byte[] template) {
+            this.pin = pin;
+            this.template = template;
+        }
+    }
+
+    /** Looks up a user's enrolled template; used to fill the hot-user cache. */
+    public interface TemplateLookup {
+        byte[] getTemplate(String pin);
+    }
+
+    private final TemplateMatcher matcher;
+    private final Listener listener;
+    private final HotUserCache hotUsers = new HotUserCache();
+    private final PinIndex pins = new PinIndex();
+    private final IdentifyResult captureResult = new IdentifyResult(SCOPE_MAX_CANDIDATES);
+    private final int[] hotScore = new int[1];
+    private final IdentifyMetrics metrics = new IdentifyMetrics();
+    private final Queue<GalleryUpdate> galleryUpdates = new ConcurrentLinkedQueue<GalleryUpdate>();
+    private volatile TemplateRefresher refresher = null;
+    private final Map<String, String> projects = new HashMap<String, String>();
+    private final HotUserCache.Filter inScope = new HotUserCache.Filter() {
+        @Override
+        public boolean accept(String pin) {
+            return isInScope(pin, scope);
+        }
+    };
+    private volatile String scope = null;
+    private TemplateLookup templateLookup = null;
+    private volatile EnrollmentSession session = null;
+    private volatile int enrollSamples = EnrollmentSession.DEFAULT_SAMPLES;
+
+    public FingerprintEngine(TemplateMatcher matcher, Listener listener)
+    {
+        this.matcher = matcher;
+        this.listener = listener;
+    }
+
+    public TemplateMatcher getMatcher()
+    {
+        return matcher;
+    }
+
+    public PinIndex getPinIndex()
+    {
+        return pins;
+    }
+
+    public IdentifyMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /** Refreshes drifting templates after high-scoring identifies; null turns it off. */
+    public void setTemplateRefresher(TemplateRefresher refresher)
+    {
+        this.refresher = refresher;
+    }
+
+    public TemplateRefresher getTemplateRefresher()
+    {
+        return refresher;
+    }
+
+    /**
+     * Replaces {@code pin}'s template in the in-memory gallery. Safe from any thread: the swap
+     * happens on the capture thread before the next enroll or identify, since the SDK gallery
+     * is not thread-safe.
+     */
+    public void queueGalleryUpdate(String pin, byte[] template)
+    {
+        galleryUpdates.add(new GalleryUpdate(pin, template));
+    }
+
+    private void applyGalleryUpdates()
+    {
+        GalleryUpdate update;
+        while (null != (update = galleryUpdates.poll())) {
+            String project;
+            synchronized (projects) {
+                project = projects.get(update.pin);
+            }
+            if (null == project)
+            {
+                continue; // deleted since
+            }
+            matcher.del(update.pin);
+            addToGallery(update.template, update.pin, project);
+            hotUsers.put(update.pin, update.template);
+        }
+    }
+
+    /**
+     * Limits identification to users of {@code project}, and enrolls new users into it;
+     * null or empty searches everyone.
+     */
+    public void setScope(String project)
+    {
+        scope = null == project || project.isEmpty() ? null : project;
+    }
+
+    public String getScope()
+    {
+        return scope;
+    }
+
+    /** Adds a stored template to the in-memory gallery under its project; returns the matcher's result. */
+    public int addToGallery(byte[] template, String pin, String project)
+    {
+        String partition = null == project ? DBManager.NO_PROJECT : project;
+        if (matcher instanceof PartitionedTemplateMatcher)
+        {
+            ((PartitionedTemplateMatcher) matcher).assign(pin, partition);
+        }
+        int ret = matcher.save(template, pin);
+        if (0 == ret)
+        {
+            pins.add(pin);
+            synchronized (projects) {
+                projects.put(pin, partition);
+            }
+        }
+        return ret;
+    }
+
+    private boolean isInScope(String pin, String current)
+    {
+        if (null == current)
+        {
+            return true;
+        }
+        synchronized (projects) {
+            return current.equals(projects.get(pin));
+        }
+    }
+
+    /**
+     * Matching samples required by enrollments started from now on, clamped to
+     * 3..{@link EnrollmentSession#MAX_SAMPLES}. Only the best agreeing three are merged into
+     * the enrolled template; a higher count makes enrollment stricter, not the template richer.
+     */
+    public void setEnrollSamples(int samples)
+    {
+        enrollSamples = EnrollmentSession.clampSamples(samples);
+    }
+
+    public int getEnrollSamples()
+    {
+        return enrollSamples;
+    }
+
+    /** Starts enrolling {@code pin} into the current scope, replacing any session in progress. */
+    public EnrollmentSession startEnroll(String pin)
+    {
+        EnrollmentSession next = new EnrollmentSession(pin, scope, enrollSamples);
+        EnrollmentSession previous = session;
+        session = next;
+        if (null != previous)
+        {
+            previous.cancel();
+        }
+        return next;
+    }
+
+    public void cancelEnroll()
+    {
+        EnrollmentSession previous = session;
+        session = null;
+        if (null != previous)
+        {
+            previous.cancel();
+        }
+    }
+
+    private void endEnroll(EnrollmentSession ended)
+    {
+        ended.cancel();
+        // a session started meanwhile stays current
+        if (session == ended)
+        {
+            session = null;
+        }
+    }
+
+    public void setTemplateLookup(TemplateLookup templateLookup)
+    {
+        this.templateLookup = templateLookup;
+    }
+
+    public HotUserCache getHotUsers()
+    {
+        return hotUsers;
+    }
+
+    /**
+     * Reports an enrollment handed to {@link Listener#onEnrolled}; one that could not be stored
+     * is taken back out of the gallery. Safe from any thread.
+     */
+    public void enrollStored(String pin, boolean stored)
+    {
+        if (stored)
+        {
+            listener.onResult("enroll succ");
+        }
+        else
+        {
+            deleteUser(pin);
+            listener.onResult("enroll fail, save template fail");
+        }
+    }
+
+    public void deleteUser(String pin)
+    {
+        matcher.del(pin);
+        hotUsers.remove(pin);
+        synchronized (projects) {
+            projects.remove(pin);
+        }
+    }
+
+    public void clearGallery()
+    {
+        matcher.clear();
+        hotUsers.clear();
+        pins.clear();
+        synchronized (projects) {
+            projects.clear();
+        }
+    }
+
+    public boolean isEnrolling()
+    {
+        EnrollmentSession current = session;
+        return null != current && !current.isClosed();
+    }
+
+    /** Routes an extracted template to enrollment or identification. */
+    public void onTemplate(byte[] template)
+    {
+        if (isEnrolling())
+        {
+            doRegister(template);
+        }
+        else
+        {
+            doIdentify(template);
+        }
+    }
+
+    public void doRegister(byte[] template)
+    {
+        applyGalleryUpdates();
+        EnrollmentSession current = session;
+        if (null == current || current.isClosed())
+        {
+            return;
+        }
+        // per press only 1:1 checks against the other samples; the 1:N duplicate search runs
+        // once, on the merged template
+        switch (current.offer(matcher, template)) {
+            case NEED_MORE:
+                listener.onResult("You need to press the " + current.remaining() + " times fingerprint");
+                return;
+            case REJECTED:
+                listener.onResult("sample does not match the others, please press the same finger again, "
+                        + current.remaining() + " more needed");
+                return;
+            case FAILED:
+                listener.onResult("please press the same finger " + current.getRequiredSamples() + " times for the enrollment, cancel enroll");
+                endEnroll(current);
+                return;
+            case CLOSED:
+                return;
+            case READY:
+                break;
+        }
+        byte[] regTemp = new byte[TEMPLATE_SIZE];
+        int ret = current.merge(matcher, regTemp);
+        endEnroll(current);
+        // duplicates are looked for in every project, whatever the scope
+        if (0 < ret && identify(regTemp, captureResult, IDENTIFY_THRESHOLD, 1, null) > 0)
+        {
+            listener.onResult("the finger already enroll by " + captureResult.pin(pins, 0) + ",cancel enroll");
+            return;
+        }
+        if (0 < ret) {
+            int retVal = addToGallery(regTemp, current.getPin(), current.getProject());
+            if (0 != retVal)
+            {
+                listener.onResult("enroll fail, add template fail, ret=" + retVal);
+            }
+            else
+            {
+                listener.onEnrolled(current.getPin(), current.getProject(), regTemp, ret);
+            }
+        } else {
+            listener.onResult("enroll fail");
+        }
+    }
+
+    public void doIdentify(byte[] template)
+    {
+        applyGalleryUpdates();
+        String current = scope;
+        String hotPin = hotUsers.match(matcher, template, hotScore, null == current ? null : inScope);
+        if (null != hotPin)
+        {
+            onIdentified(hotPin, template, hotScore[0]);
+            listener.onResult("identify succ, userid:" + hotPin + ", score:" + hotScore[0]);
+            return;
+        }
+        int ret = identify(template, captureResult, IDENTIFY_THRESHOLD, 1, current);
+        String pin = ret > 0 ? captureResult.pin(pins, 0) : null;
+        if (null != pin) {
+            rememberHotUser(pin, template);
+            onIdentified(pin, template, captureResult.scores[0]);
+            listener.onResult("identify succ, userid:" + pin + ", score:" + captureResult.scores[0]);
+        } else {
+            metrics.onFailure(System.currentTimeMillis());
+            listener.onResult("identify fail, ret=" + ret);
+        }
+    }
+
+    private void onIdentified(String pin, byte[] template, int score)
+    {
+        metrics.onSuccess(System.currentTimeMillis());
+        TemplateRefresher current = refresher;
+        if (null != current)
+        {
+            current.offer(pin, template, score);
+        }
+    }
+
+    /**
+     * 1:N identify within the current scope, keeping up to {@code count} candidates scoring
+     * at least {@code threshold}, best first. A count above 1 lets a UI show near-misses
+     * without a second search.
+     *
+     * @param result receives the candidates; {@code count} is capped at its capacity
+     * @return the number of candidates, or the matcher's value &lt;= 0 on no match or error
+     */
+    public int identify(byte[] template, IdentifyResult result, int threshold, int count)
+    {
+        return identify(template, result, threshold, count, scope);
+    }
+
+    private int identify(byte[] template, IdentifyResult result, int threshold, int count, String current)
+    {
+        result.clear();
+        count = Math.min(count, result.capacity());
+        int ret;
+        if (null == current)
+        {
+            ret = matcher.identify(template, result.buffer, threshold, count);
+        }
+        else if (matcher instanceof PartitionedTemplateMatcher)
+        {
+            ret = ((PartitionedTemplateMatcher) matcher).identifyInScope(current, template, result.buffer, threshold, count);
+        }
+        else
+        {
+            return identifyShared(template, result, threshold, count, current);
+        }
+        if (ret <= 0)
+        {
+            return ret;
+        }
+        result.parse(pins, ret);
+        result.truncate(count);
+        return result.count();
+    }
+
+    /**
+     * Scoped identify over one shared gallery: over-fetch, then drop candidates from other
+     * projects. A full page of other projects' users can hide an in-scope one that scores
+     * lower, so then the search is repeated with a larger page.
+     */
+    private int identifyShared(byte[] template, IdentifyResult result, int threshold, int count, String current)
+    {
+        int fetch = Math.max(count, Math.min(SCOPE_CANDIDATES, result.capacity()));
+        while (true) {
+            result.clear();
+            int ret = matcher.identify(template, result.buffer, threshold, fetch);
+            if (ret <= 0)
+            {
+                return ret;
+            }
+            result.parse(pins, Math.min(ret, fetch));
+            for (int i = result.count() - 1; i >= 0; i--) {
+                if (!isInScope(result.pin(pins, i), current))
+                {
+                    result.remove(i);
+                }
+            }
+            if (result.count() > 0 || ret < fetch || fetch >= result.capacity())
+            {
+                break;
+            }
+            fetch = Math.min(fetch * 4, result.capacity());
+        }
+        result.truncate(count);
+        return result.count();
+    }
+
+    private void rememberHotUser(String pin, byte[] capture)
+    {
+        byte[] enrolled = null == templateLookup ? null : templateLookup.getTemplate(pin);
+        hotUsers.put(pin, null != enrolled ? enrolled : capture.clone());
+    }
+}
@@ -0,0 +1,95 @@
+package com.womenfirst;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Hands preview frames to JS as files instead of Base64 strings. Each frame is encoded
+ * straight into {@code frame_<captureId>.<extension>} in {@code dir}, the extension following
+ * the preview codec. Only the newest {@code slots} files are kept, so a screen has that many
+ * captures' time to read a path before it disappears. Every capture gets a new name, so the
+ * image cache never shows a stale frame under a reused path.
+ *
+ * <p>Frames are written to a temporary file and renamed into place, so a reader never sees
+ * a partly written one.
+ */
+public class FrameFileRing {
+    public static final int DEFAULT_SLOTS = 4;
+    private static final String PREFIX = "frame_";
+
+    /** Writes one encoded frame. */
+    public interface Encoder {
+        void encode(OutputStream out) throws IOException;
+    }
+
+    public static class Frame {
+        public final long captureId;
+        public final File file;
+        public final long bytes;
+
+        Frame(long captureId, File file, long bytes) {
+            this.captureId = captureId;
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+    private final File dir;
+    /** recent[written % length]: newest frames, the oldest overwritten first */
+    private final File[] recent;
+    /** frames written so far; capture ids have gaps, so they cannot pick the slot */
+    private long written = 0;
+
+    public FrameFileRing(File dir, int slots)
+    {
+        this.dir = dir;
+        this.recent = new File[Math.max(1, slots)];
+    }
+
+    /** Creates {@code dir} and removes frames left over from an earlier run. */
+    public synchronized void open() throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs())
+        {
+            throw new IOException("cannot create " + dir);
+        }
+        File[] stale = dir.listFiles();
+        if (null != stale)
+        {
+            for (File file : stale) {
+                if (file.getName().startsWith(PREFIX))
+                {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    /** @param captureId increasing id of the capture, which names the file */
+    public synchronized Frame write(long captureId, String extension, Encoder encoder) throws IOException
+    {
+        File tmp = new File(dir, PREFIX + captureId + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp));
+        try {
+            encoder.encode(out);
+        } finally {
+            out.close();
+        }
+        File file = new File(dir, PREFIX + captureId + "." + extension);
+        if (!tmp.renameTo(file))
+        {
+            tmp.delete();
+            throw new IOException("cannot rename " + tmp + " to " + file);
+        }
+        int slot = (int) (written++ % recent.length);
+        if (null != recent[slot])
+        {
+            recent[slot].delete();
+        }
+        recent[slot] = file;
+        return new Frame(captureId, file, file.length());
+    }
+}
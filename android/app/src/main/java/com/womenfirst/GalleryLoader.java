@@ -0,0 +1,343 @@
+package com.womenfirst;
+
+import com.womenfirst.util.TemplateUtils;
+import com.zkteco.android.biometric.core.utils.LogHelper;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads every stored template into the SDK's in-memory gallery on a background thread, so
+ * opening the sensor does not wait for it. Progress is reported through {@link Listener};
+ * callers that need the full gallery (identify, duplicate checks) wait on {@link #awaitReady}.
+ *
+ * <p>The load is a three stage pipeline: the loader thread reads rows from the store, a pool
+ * sized to the core count validates them (length bounds and CRC), and a single saver thread
+ * hands them to {@link FingerprintEngine#addToGallery}, in read order since the SDK's save is not
+ * thread-safe. Each user goes into the gallery under the project it was enrolled in.
+ *
+ * <p>If the store cannot be read or a save throws, the pipeline is cancelled and drained,
+ * {@link Listener#onFailed} is told why and waiters are released with false.
+ */
+public class GalleryLoader {
+    private static final long PROGRESS_INTERVAL_MS = 200;
+    private static final int JOBS_PER_WORKER = 8;
+
+    public interface Listener {
+        void onProgress(int loaded, int total);
+
+        void onReady(Stats stats);
+
+        /** The load stopped short; the gallery holds only part of the templates. */
+        void onFailed(Stats stats, String reason);
+    }
+
+    /** Counts and per-stage wall times of one load, in milliseconds. */
+    public static class Stats {
+        public int total;
+        public int loaded;
+        public int failed;
+        public int invalid;
+        public long readMs;
+        public long validateMs;
+        public long saveMs;
+        public long elapsedMs;
+
+        @Override
+        public String toString() {
+            return "loaded=" + loaded + "/" + total + " failed=" + failed + " invalid=" + invalid
+                    + " read=" + readMs + "ms validate=" + validateMs + "ms save=" + saveMs
+                    + "ms elapsed=" + elapsedMs + "ms";
+        }
+    }
+
+    /** A template travelling through the pipeline; recycled through {@code freeJobs}. */
+    private static class Job {
+        String pin;
+        String project;
+        final byte[] feature = new byte[DBManager.TEMPLATE_BUFFER_SIZE];
+        int length;
+        int crc;
+        boolean valid;
+    }
+
+    private final TemplateStore store;
+    private final String fileName;
+    private final FingerprintEngine engine;
+    private final Listener listener;
+    private final CountDownLatch ready = new CountDownLatch(1);
+    private volatile boolean cancelled = false;
+    /** set before {@code ready} opens if every template was read and handed to the gallery */
+    private volatile boolean complete = false;
+    /** why the load stopped short, if it did */
+    private volatile String failure = null;
+
+    private final int workers = Math.max(1, Runtime.getRuntime().availableProcessors());
+    private final BlockingQueue<Job> freeJobs = new ArrayBlockingQueue<Job>(workers * JOBS_PER_WORKER);
+    private final BlockingQueue<Future<Job>> validated = new ArrayBlockingQueue<Future<Job>>(workers * JOBS_PER_WORKER);
+    private static final Future<Job> END_OF_GALLERY = new FutureTask<Job>(new Callable<Job>() {
+        @Override
+        public Job call() {
+            return null;
+        }
+    });
+    private final AtomicLong validateNanos = new AtomicLong();
+
+    public GalleryLoader(TemplateStore store, String fileName, FingerprintEngine engine, Listener listener)
+    {
+        this.store = store;
+        this.fileName = fileName;
+        this.engine = engine;
+        this.listener = listener;
+        for (int i = 0; i < workers * JOBS_PER_WORKER; i++) {
+            freeJobs.add(new Job());
+        }
+    }
+
+    public void start()
+    {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        }, "GalleryLoader");
+        thread.start();
+    }
+
+    /**
+     * Stops a load in progress. Waiters are released, but {@link #awaitReady} returns false
+     * for them since the gallery only holds part of the templates.
+     */
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    /** True once the whole gallery is loaded; false while loading and after a cancel or failure. */
+    public boolean isReady()
+    {
+        return ready.getCount() == 0 && complete;
+    }
+
+    /** True once the load has stopped, whether or not it completed. */
+    public boolean isFinished()
+    {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * @return true if the whole gallery is loaded; false on timeout, or if the load was
+     *         cancelled or failed ({@link #isFinished} tells these apart)
+     */
+    public boolean awaitReady(long timeoutMs)
+    {
+        try {
+            return ready.await(timeoutMs, TimeUnit.MILLISECONDS) && complete;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void load()
+    {
+        final Stats stats = new Stats();
+        final long start = System.nanoTime();
+        final ExecutorService validators = Executors.newFixedThreadPool(workers);
+        Thread saver = null;
+        try {
+            // waits here, not on the caller's thread, for an open started by opendbAsync (and any
+            // schema migration) to finish instead of opening the store a second time
+            if (!store.opendb(fileName))
+            {
+                fail("open template store " + fileName + " failed");
+                return;
+            }
+            stats.total = store.getCount();
+            listener.onProgress(0, stats.total);
+            saver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    save(stats);
+                }
+            }, "GallerySaver");
+            saver.start();
+            final long[] waitNanos = new long[1];
+            store.forEachTemplate(DBManager.DEFAULT_PAGE_SIZE, new TemplateStore.TemplateVisitor() {
+                @Override
+                public boolean visit(String pin, String project, byte[] feature, int length, int crc) {
+                    if (cancelled)
+                    {
+                        return false;
+                    }
+                    long waitStart = System.nanoTime();
+                    final Job job = takeFreeJob();
+                    waitNanos[0] += System.nanoTime() - waitStart;
+                    if (null == job)
+                    {
+                        return false;
+                    }
+                    job.pin = pin;
+                    job.project = project;
+                    job.length = length;
+                    job.crc = crc;
+                    int copied = Math.min(length, job.feature.length);
+                    System.arraycopy(feature, 0, job.feature, 0, copied);
+                    Arrays.fill(job.feature, copied, job.feature.length, (byte) 0);
+                    Future<Job> future = validators.submit(new Callable<Job>() {
+                        @Override
+                        public Job call() {
+                            validate(job);
+                            return job;
+                        }
+                    });
+                    waitStart = System.nanoTime();
+                    boolean queued = put(future);
+                    waitNanos[0] += System.nanoTime() - waitStart;
+                    return queued;
+                }
+            });
+            stats.readMs = (System.nanoTime() - start - waitNanos[0]) / 1000000;
+            boolean ended = put(END_OF_GALLERY);
+            saver.join();
+            complete = ended && !cancelled;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            fail("read template store failed: " + e);
+            // the saver drains what was queued without saving it, then stops
+            if (null != saver && put(END_OF_GALLERY))
+            {
+                try {
+                    saver.join();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        } finally {
+            validators.shutdownNow();
+            ready.countDown();
+        }
+        if (null != failure)
+        {
+            stats.elapsedMs = (System.nanoTime() - start) / 1000000;
+            listener.onFailed(stats, failure);
+            return;
+        }
+        if (cancelled || null == saver)
+        {
+            return;
+        }
+        stats.validateMs = validateNanos.get() / 1000000;
+        stats.elapsedMs = (System.nanoTime() - start) / 1000000;
+        LogHelper.d("gallery loaded: " + stats);
+        listener.onReady(stats);
+    }
+
+    private void validate(Job job)
+    {
+        long start = System.nanoTime();
+        job.valid = job.length > 0 && job.length <= job.feature.length
+                && TemplateUtils.crc32(job.feature, job.length) == job.crc;
+        validateNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private void save(Stats stats)
+    {
+        long saveNanos = 0;
+        long lastReport = System.currentTimeMillis();
+        while (true) {
+            Job job;
+            try {
+                Future<Job> future = validated.take();
+                if (future == END_OF_GALLERY)
+                {
+                    break;
+                }
+                job = future.get();
+            } catch (InterruptedException e) {
+                return;
+            } catch (ExecutionException e) {
+                LogHelper.e("validate template failed: " + e.getCause());
+                continue;
+            }
+            try {
+                if (!job.valid)
+                {
+                    stats.invalid++;
+                    LogHelper.e("skip [" + job.pin + "] template, length or crc mismatch");
+                }
+                else if (!cancelled)
+                {
+                    long start = System.nanoTime();
+                    int ret = engine.addToGallery(job.feature, job.pin, job.project);
+                    saveNanos += System.nanoTime() - start;
+                    if (0 != ret)
+                    {
+                        stats.failed++;
+                        LogHelper.e("add [" + job.pin + "] template failed, ret=" + ret);
+                    }
+                    else
+                    {
+                        stats.loaded++;
+                    }
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL_MS && !cancelled)
+                {
+                    lastReport = now;
+                    listener.onProgress(stats.loaded + stats.failed + stats.invalid, stats.total);
+                }
+            } catch (RuntimeException e) {
+                // keep draining so the reader never blocks on a full queue
+                stats.failed++;
+                fail("add [" + job.pin + "] template threw " + e);
+            }
+            freeJobs.add(job);
+        }
+        stats.saveMs = saveNanos / 1000000;
+    }
+
+    /** Records the first failure and cancels the rest of the load. */
+    private void fail(String reason)
+    {
+        LogHelper.e("gallery load failed: " + reason);
+        if (null == failure)
+        {
+            failure = reason;
+        }
+        cancelled = true;
+    }
+
+    private Job takeFreeJob()
+    {
+        try {
+            return freeJobs.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private boolean put(Future<Job> future)
+    {
+        try {
+            validated.put(future);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.womenfirst;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU of recently identified users and their enrolled templates. Most scans at a gate
+ * come from the same few hundred residents, so a capture is first verified 1:1 against this
+ * set and only falls back to a full 1:N identify on a miss.
+ *
+ * <p>{@link #match} verifies against every cached user and returns the best score, so a
+ * near-duplicate never wins over the right user because it was seen more recently. It walks
+ * a snapshot of the pins and templates that is only rebuilt after {@link #put}, {@link #remove}
+ * or {@link #clear}, so a capture allocates nothing.
+ */
+public class HotUserCache {
+    public static final int DEFAULT_CAPACITY = 200;
+    /** a hot-set match skips the 1:N search, so it needs more margin than the 1:N threshold */
+    public static final int DEFAULT_THRESHOLD = 80;
+
+    /** Restricts a match to some of the cached users, e.g. those of one project. */
+    public interface Filter {
+        boolean accept(String pin);
+    }
+
+    private final int capacity;
+    private final int threshold;
+    private final LinkedHashMap<String, byte[]> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private String[] snapshotPins = new String[0];
+    private byte[][] snapshotTemplates = new byte[0][];
+    /** set when membership or a template changed since the snapshot was taken */
+    private boolean stale = false;
+
+    public HotUserCache()
+    {
+        this(DEFAULT_CAPACITY, DEFAULT_THRESHOLD);
+    }
+
+    public HotUserCache(final int capacity, int threshold)
+    {
+        this.capacity = capacity;
+        this.threshold = threshold;
+        entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+                return size() > HotUserCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Verifies {@code template} against the hot set.
+     *
+     * @param score receives the best match score in element 0 on a hit
+     * @return the best scoring pin at or above the threshold, or null on a miss
+     */
+    public String match(TemplateMatcher matcher, byte[] template, int[] score)
+    {
+        return match(matcher, template, score, null);
+    }
+
+    /** As {@link #match(TemplateMatcher, byte[], int[])}, skipping users {@code filter} rejects. */
+    public synchronized String match(TemplateMatcher matcher, byte[] template, int[] score, Filter filter)
+    {
+        if (stale)
+        {
+            snapshot();
+        }
+        int best = -1;
+        int bestScore = threshold - 1;
+        for (int i = 0; i < snapshotPins.length; i++) {
+            if (null != filter && !filter.accept(snapshotPins[i]))
+            {
+                continue;
+            }
+            int ret = matcher.verify(snapshotTemplates[i], template);
+            if (ret > bestScore)
+            {
+                best = i;
+                bestScore = ret;
+            }
+        }
+        if (best < 0)
+        {
+            misses.incrementAndGet();
+            return null;
+        }
+        entries.get(snapshotPins[best]); // refresh recency; membership, and so the snapshot, is unchanged
+        score[0] = bestScore;
+        hits.incrementAndGet();
+        return snapshotPins[best];
+    }
+
+    private void snapshot()
+    {
+        if (snapshotPins.length != entries.size())
+        {
+            snapshotPins = new String[entries.size()];
+            snapshotTemplates = new byte[entries.size()][];
+        }
+        int i = 0;
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            snapshotPins[i] = entry.getKey();
+            snapshotTemplates[i] = entry.getValue();
+            i++;
+        }
+        stale = false;
+    }
+
+    public synchronized void put(String pin, byte[] template)
+    {
+        entries.put(pin, template);
+        stale = true;
+    }
+
+    public synchronized void remove(String pin)
+    {
+        if (null != entries.remove(pin))
+        {
+            stale = true;
+        }
+    }
+
+    public synchronized void clear()
+    {
+        entries.clear();
+        stale = true;
+    }
+
+    public synchronized int size()
+    {
+        return entries.size();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+}
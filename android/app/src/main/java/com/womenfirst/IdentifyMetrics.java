@@ -0,0 +1,69 @@
+package com.womenfirst;
+
+/**
+ * Gate throughput metrics: how many presses a person needs before identify succeeds. Presses
+ * closer together than {@link #ATTEMPT_GAP_MS} are taken to be the same person trying again;
+ * failures followed by a longer pause count as an abandoned attempt.
+ */
+public class IdentifyMetrics {
+    public static final long ATTEMPT_GAP_MS = 10000;
+
+    private long people = 0;
+    private long firstPress = 0;
+    private long presses = 0;
+    private long abandoned = 0;
+    private int pendingFailures = 0;
+    private long lastPressAt = 0;
+
+    public synchronized void onSuccess(long now)
+    {
+        expire(now);
+        people++;
+        presses += pendingFailures + 1;
+        if (0 == pendingFailures)
+        {
+            firstPress++;
+        }
+        pendingFailures = 0;
+        lastPressAt = now;
+    }
+
+    public synchronized void onFailure(long now)
+    {
+        expire(now);
+        pendingFailures++;
+        lastPressAt = now;
+    }
+
+    private void expire(long now)
+    {
+        if (pendingFailures > 0 && now - lastPressAt > ATTEMPT_GAP_MS)
+        {
+            abandoned++;
+            pendingFailures = 0;
+        }
+    }
+
+    /** people identified */
+    public synchronized long getPeople()
+    {
+        return people;
+    }
+
+    /** share of identified people who succeeded on their first press, 0..1 */
+    public synchronized double getFirstPressRate()
+    {
+        return people > 0 ? (double) firstPress / people : 0;
+    }
+
+    /** presses per identified person, failed presses before the success included */
+    public synchronized double getAveragePresses()
+    {
+        return people > 0 ? (double) presses / people : 0;
+    }
+
+    public synchronized long getAbandoned()
+    {
+        return abandoned;
+    }
+}
@@ -0,0 +1,137 @@
+package com.womenfirst;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Reusable holder for the top-N candidates of one identify: the raw SDK result buffer and,
+ * once {@link #parse}d, the candidates as parallel primitive arrays of {@link PinIndex} ids
+ * and scores, best first. Allocate one per capture thread and pass it to every
+ * {@link FingerprintEngine#identify} call; nothing is allocated per capture.
+ */
+public class IdentifyResult {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** bytes reserved per candidate: a 64 byte pin, a tab, the score and a separator */
+    private static final int BYTES_PER_CANDIDATE = 72;
+
+    public final int[] pinIndex;
+    public final int[] scores;
+    /** receives the matcher's "id\tscore" text; see {@link TemplateMatcher#identify} */
+    final byte[] buffer;
+    private int count = 0;
+
+    public IdentifyResult(int capacity)
+    {
+        pinIndex = new int[capacity];
+        scores = new int[capacity];
+        buffer = new byte[Math.max(256, capacity * BYTES_PER_CANDIDATE)];
+    }
+
+    public int capacity()
+    {
+        return scores.length;
+    }
+
+    public int count()
+    {
+        return count;
+    }
+
+    /** Resolves candidate {@code i} to its pin; returns null if the pin is not indexed. */
+    public String pin(PinIndex pins, int i)
+    {
+        return pins.pin(pinIndex[i]);
+    }
+
+    /**
+     * Drops the candidates and zeroes {@link #buffer}, so that a matcher writing a shorter
+     * result than the last one leaves no tail of it behind. Call before every identify.
+     */
+    void clear()
+    {
+        count = 0;
+        Arrays.fill(buffer, (byte) 0);
+    }
+
+    /** Drops candidate {@code i}, keeping the rest in order. */
+    void remove(int i)
+    {
+        System.arraycopy(pinIndex, i + 1, pinIndex, i, count - i - 1);
+        System.arraycopy(scores, i + 1, scores, i, count - i - 1);
+        count--;
+    }
+
+    void truncate(int max)
+    {
+        count = Math.min(count, max);
+    }
+
+    /**
+     * Parses the first {@code max} "id\tscore" entries of {@link #buffer} in place; entries
+     * are separated by '\n' or '\t' and the text ends at the first NUL. Pass the matcher's
+     * return value as {@code max}, never more than it reported. A pin the index does
+     * not know yet (saved to the matcher behind the engine's back) is added to it, the only
+     * case that allocates.
+     *
+     * @return the number of candidates parsed
+     */
+    int parse(PinIndex pins, int max)
+    {
+        count = 0;
+        int limit = Math.min(max, scores.length);
+        int i = 0;
+        int end = buffer.length;
+        while (count < limit) {
+            while (i < end && isBlank(buffer[i])) {
+                i++;
+            }
+            int pinStart = i;
+            // a pin may hold spaces but never a separator; hitting '\n' first means no score
+            while (i < end && buffer[i] != '\t' && buffer[i] != '\n' && buffer[i] != 0) {
+                i++;
+            }
+            if (i >= end || buffer[i] != '\t' || i == pinStart)
+            {
+                break;
+            }
+            int pinEnd = i++;
+            int score = 0;
+            int digits = 0;
+            while (i < end && buffer[i] >= '0' && buffer[i] <= '9') {
+                score = score * 10 + (buffer[i++] - '0');
+                digits++;
+            }
+            if (0 == digits)
+            {
+                break;
+            }
+            int pinLength = trimEnd(pinStart, pinEnd) - pinStart;
+            int id = pins.find(buffer, pinStart, pinLength);
+            if (id == PinIndex.NOT_FOUND)
+            {
+                id = pins.add(new String(buffer, pinStart, pinLength, UTF_8));
+            }
+            pinIndex[count] = id;
+            scores[count] = score;
+            count++;
+            if (i < end && buffer[i] != 0)
+            {
+                i++; // entry separator
+            }
+        }
+        return count;
+    }
+
+    private int trimEnd(int start, int end)
+    {
+        while (end > start && buffer[end - 1] == ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    private static boolean isBlank(byte b)
+    {
+        return b == ' ' || b == '\n' || b == '\r';
+    }
+}
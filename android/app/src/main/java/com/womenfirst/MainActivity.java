@@ -2,6 +2,7 @@ package com.womenfirst;
 
 import com.facebook.react.ReactActivityDelegate;
 import com.facebook.react.ReactRootView;
+import android.os.Build;
 import android.os.Bundle;
 import com.facebook.react.ReactActivity;
 import org.devio.rn.splashscreen.SplashScreen;
@@ -43,9 +44,14 @@ import com.zkteco.android.biometric.module.fingerprintreader.exception.Fingerpri
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 import com.facebook.react.bridge.UiThreadUtil;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import com.facebook.react.bridge.WritableMap;
 import com.facebook.react.bridge.Arguments;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
@@ -72,16 +78,78 @@ public class MainActivity extends ReactActivity {
   private boolean bStarted = false;
   private int deviceIndex = 0;
   private boolean isReseted = false;
-  private String strUid = null;
-  private final static int ENROLL_COUNT   =   3;
-  private int enroll_index = 0;
-  private byte[][] regtemparray = new byte[3][2048];  //register template buffer array
-  private boolean bRegister = false;
   private DBManager dbManager = new DBManager();
+  // not partitioned: the SDK has one global gallery, so project scopes are applied as a filter
+  private final TemplateMatcher matcher = new ZKFingerServiceMatcher();
+  private final FingerprintEngine engine = new FingerprintEngine(matcher, new FingerprintEngine.Listener() {
+      @Override
+      public void onResult(String message) {
+          setResult(message);
+      }
+
+      @Override
+      public void onEnrolled(final String pin, String project, byte[] template, int length) {
+          // reported once its row has committed; the capture thread does not wait for the group commit
+          dbManager.submitInsertUser(pin, project, template, length, new DBManager.WriteListener<Boolean>() {
+              @Override
+              public void onWritten(Boolean stored, Throwable error) {
+                  if (null != error) {
+                      Log.e(TAG, "insert [" + pin + "] failed", error);
+                  }
+                  engine.enrollStored(pin, Boolean.TRUE.equals(stored));
+              }
+          });
+      }
+  });
   private String dbFileName;
   private static final int REQUEST_IMAGE_CAPTURE = 1;
   
   private static final int CHUNK_SIZE = 1024 * 10;
+  private static final long GALLERY_READY_TIMEOUT_MS = 3000;
+  private volatile GalleryLoader galleryLoader = null;
+  private DuplicateAudit duplicateAudit = null;
+  private final CaptureProcessor captureProcessor = new CaptureProcessor(new CaptureProcessor.Handler() {
+      @Override
+      public void process(long captureId, byte[] image, int width, int height) {
+          if (null != uploadEndpoint) {
+              rememberCapture(captureId, image, width, height);
+          }
+          if (!hasPreviewListeners()) {
+              return; // submitted for upload only
+          }
+          PreviewConfig config = previewConfig;
+          Bitmap bitmap = preview.render(image, width, height, config);
+          if (PREVIEW_MODE_FILE.equals(previewMode)) {
+              sendFrameFileToReactNative(captureId, bitmap, config, width, height);
+          } else {
+              long start = System.nanoTime();
+              String base64 = preview.encodeBase64(bitmap, config);
+              long encodeNanos = System.nanoTime() - start;
+              previewStats.record(config, encodeNanos, preview.getEncodedBytes());
+              sendPreviewToReactNative(captureId, base64, bitmap, config, encodeNanos, preview.getEncodedBytes());
+          }
+      }
+  });
+  public static final String PREVIEW_MODE_BASE64 = "base64";
+  public static final String PREVIEW_MODE_FILE = "file";
+  private volatile String previewMode = PREVIEW_MODE_BASE64;
+  private volatile PreviewConfig previewConfig = PreviewConfig.DEFAULT;
+  private final PreviewConfig.Stats previewStats = new PreviewConfig.Stats();
+  private FrameFileRing frameRing = null;
+  private boolean frameRingOpened = false;
+  // no default: only an endpoint that speaks ChunkedUploader's protocol may be set here
+  private volatile String uploadEndpoint = null;
+  // only touched from the sensor's capture thread
+  private long nextCaptureId = 1;
+  // newest capture at full resolution, kept for uploadCapture once an upload endpoint is set
+  private final Object lastCaptureLock = new Object();
+  private byte[] lastCapture = new byte[0];
+  private int lastCaptureWidth = 0;
+  private int lastCaptureHeight = 0;
+  private long lastCaptureId = 0;
+  // only touched from the capture processor's worker thread
+  private final PreviewRenderer preview = new PreviewRenderer();
+
   /**
    * Returns the name of the main component registered from JavaScript. This is used to schedule
    * rendering of the component.
@@ -101,6 +169,26 @@ public class MainActivity extends ReactActivity {
       super.onCreate(savedInstanceState);
     //  setContentView(R.layout.activity_main);
     dbFileName = getFilesDir().getAbsolutePath() + "/zkfinger10.db";
+    dbManager.opendbAsync(dbFileName, true);
+    frameRing = new FrameFileRing(new File(getCacheDir(), "fp_frames"), FrameFileRing.DEFAULT_SLOTS);
+    FingerprintEngine.TemplateLookup lookup = new FingerprintEngine.TemplateLookup() {
+        @Override
+        public byte[] getTemplate(String pin) {
+            return dbManager.getTemplate(pin);
+        }
+    };
+    engine.setTemplateLookup(lookup);
+    engine.setTemplateRefresher(new TemplateRefresher(matcher, lookup, new TemplateRefresher.Store() {
+        @Override
+        public boolean refreshTemplate(String pin, byte[] template, int length, int score) {
+            return dbManager.refreshTemplate(pin, template, length, score);
+        }
+    }, new TemplateRefresher.Listener() {
+        @Override
+        public void onRefreshed(String pin, byte[] template, int length) {
+            engine.queueGalleryUpdate(pin, template);
+        }
+    }));
     initUI();
     checkStoragePermission();
     zkusbManager = new ZKUSBManager(this.getApplicationContext(), zkusbManagerListener);
@@ -140,66 +228,91 @@ public class MainActivity extends ReactActivity {
   }
 
 
+  public FingerprintEngine getEngine() {
+    return engine;
+  }
+
+  public DBManager getDBManager() {
+    return dbManager;
+  }
+
+  public CaptureProcessor getCaptureProcessor() {
+    return captureProcessor;
+  }
+
+  /** Preview frames that needed a new bitmap, and that outgrew the Base64 buffer. */
+  public long[] getPreviewPoolMisses() {
+    return new long[] { preview.getBitmapMisses(), preview.getBufferMisses() };
+  }
+
+  /**
+   * Starts the duplicate audit in the background, resuming an interrupted run unless
+   * {@code restart}; progress goes out as DuplicateAuditProgress events. Returns false if an
+   * audit is already running or the gallery it identifies against is not fully loaded.
+   */
+  public synchronized boolean startDuplicateAudit(boolean restart) {
+    if (null != duplicateAudit && duplicateAudit.isRunning()) {
+      return false;
+    }
+    GalleryLoader loader = galleryLoader;
+    if (null == loader || !loader.isReady()) {
+      return false;
+    }
+    // one worker: each identify takes the SDK lock, so more workers would only queue in front of live identify
+    duplicateAudit = new DuplicateAudit(dbManager, matcher, 1, new DuplicateAudit.Listener() {
+        @Override
+        public void onProgress(DuplicateAudit.Stats stats) {
+            sendAuditProgress(stats, false);
+        }
+
+        @Override
+        public void onFinished(DuplicateAudit.Stats stats) {
+            sendAuditProgress(stats, true);
+        }
+    });
+    duplicateAudit.start(restart);
+    return true;
+  }
+
+  public synchronized void cancelDuplicateAudit() {
+    if (null != duplicateAudit) {
+      duplicateAudit.cancel();
+    }
+  }
+
   public void showToast(String message) {
     Toast.makeText(getApplicationContext(), message, Toast.LENGTH_SHORT).show();
   }
-  void doRegister(byte[] template)
+  private boolean waitForGallery()
   {
-      byte[] bufids = new byte[256];
-      int ret = ZKFingerService.identify(template, bufids, 70, 1);
-      if (ret > 0)
+      GalleryLoader loader = galleryLoader;
+      if (null != loader && !loader.awaitReady(GALLERY_READY_TIMEOUT_MS))
       {
-          String strRes[] = new String(bufids).split("\t");
-          setResult("the finger already enroll by " + strRes[0] + ",cancel enroll");
-          bRegister = false;
-          enroll_index = 0;
-          return;
+          // a cancelled or failed load leaves a partial gallery, where identify would miss users
+          setResult(loader.isFinished()
+                  ? "fingerprint gallery did not load, please reconnect the device"
+                  : "fingerprint gallery is still loading, please try again");
+          return false;
       }
-      if (enroll_index > 0 && (ret = ZKFingerService.verify(regtemparray[enroll_index-1], template)) <= 0)
+      return true;
+  }
+
+  void doRegister(byte[] template)
+  {
+      if (!waitForGallery())
       {
-          setResult("please press the same finger 3 times for the enrollment, cancel enroll, socre=" + ret);
-          bRegister = false;
-          enroll_index = 0;
           return;
       }
-      System.arraycopy(template, 0, regtemparray[enroll_index], 0, 2048);
-      enroll_index++;
-      if (enroll_index == ENROLL_COUNT) {
-          bRegister = false;
-          enroll_index = 0;
-          byte[] regTemp = new byte[2048];
-          if (0 < (ret = ZKFingerService.merge(regtemparray[0], regtemparray[1], regtemparray[2], regTemp))) {
-              int retVal = 0;
-              retVal = ZKFingerService.save(regTemp, strUid);
-              if (0 == retVal)
-              {
-                  String strFeature = Base64.encodeToString(regTemp, 0, ret, Base64.NO_WRAP);
-                  dbManager.insertUser(strUid, strFeature);
-                  setResult("enroll succ");
-              }
-              else
-              {
-                  setResult("enroll fail, add template fail, ret=" + retVal);
-              }
-          } else {
-              setResult("enroll fail");
-          }
-          bRegister = false;
-      } else {
-          setResult("You need to press the " + (3 - enroll_index) + " times fingerprint");
-      }
+      engine.doRegister(template);
   }
 
   void doIdentify(byte[] template)
   {
-      byte[] bufids = new byte[256];
-      int ret = ZKFingerService.identify(template, bufids, 70, 1);
-      if (ret > 0) {
-          String strRes[] = new String(bufids).split("\t");
-          setResult("identify succ, userid:" + strRes[0].trim() + ", score:" + strRes[1].trim());
-      } else {
-          setResult("identify fail, ret=" + ret);
+      if (!waitForGallery())
+      {
+          return;
       }
+      engine.doIdentify(template);
   }
 
     // public void sendEvent(String eventName, Bundle params) {
@@ -296,11 +409,15 @@ public class MainActivity extends ReactActivity {
     public FingerprintCaptureListener fingerprintCaptureListener = new FingerprintCaptureListener() {
         @Override
         public void captureOK(byte[] fpImage) {
-            final Bitmap bitmap = ToolUtils.renderCroppedGreyScaleBitmap(fpImage, fingerprintSensor.getImageWidth(), fingerprintSensor.getImageHeight());
-            final Bitmap resizedBitmap = resizeBitmap(bitmap, 100, 100);
-            final String base64String = bitmapToBase64(resizedBitmap);
-            
-            sendBitmapToReactNative(base64String);
+            // render, resize, encode, emit and keeping the capture for upload happen on the
+            // processor thread, not the sensor's; with no screen listening and no upload endpoint
+            // (e.g. identify at a gate) the frame is not even copied
+            long captureId = nextCaptureId++;
+            if (hasPreviewListeners() || null != uploadEndpoint) {
+                captureProcessor.submit(captureId, fpImage, fingerprintSensor.getImageWidth(), fingerprintSensor.getImageHeight());
+            } else {
+                captureProcessor.skip();
+            }
 
             // runOnUiThread(new Runnable() {
             //     public void run() {
@@ -359,7 +476,7 @@ public class MainActivity extends ReactActivity {
 
         @Override
         public void extractOK(byte[] fpTemplate) {
-            if (bRegister)
+            if (engine.isEnrolling())
             {
                 doRegister(fpTemplate);
             }
@@ -392,21 +509,321 @@ public class MainActivity extends ReactActivity {
         return Bitmap.createScaledBitmap(bitmap, width, height, true);
     }
 
+    /**
+     * Preview resize timings at the sensor's frame size (or a default while closed): the
+     * JVM paths from {@link PreviewBenchmark} plus the old and new paths through real bitmaps.
+     */
+    public List<PreviewBenchmark.Result> benchmarkPreview() {
+        int width = PreviewBenchmark.DEFAULT_WIDTH;
+        int height = PreviewBenchmark.DEFAULT_HEIGHT;
+        if (bStarted) {
+            width = fingerprintSensor.getImageWidth();
+            height = fingerprintSensor.getImageHeight();
+        }
+        List<PreviewBenchmark.Path> paths = PreviewBenchmark.defaultPaths();
+        paths.add(new PreviewBenchmark.Path() {
+            @Override
+            public String name() {
+                return "bitmap-render-scale";
+            }
+
+            @Override
+            public long allocatedPerFrame(int width, int height) {
+                return 4L * width * height + 4L * PreviewBenchmark.PREVIEW_SIZE * PreviewBenchmark.PREVIEW_SIZE;
+            }
+
+            @Override
+            public void process(byte[] image, int width, int height) {
+                resizeBitmap(ToolUtils.renderCroppedGreyScaleBitmap(image, width, height),
+                        PreviewBenchmark.PREVIEW_SIZE, PreviewBenchmark.PREVIEW_SIZE);
+            }
+        });
+        paths.add(new PreviewBenchmark.Path() {
+            private final PreviewRenderer renderer = new PreviewRenderer();
+
+            @Override
+            public String name() {
+                return "bitmap-area-average";
+            }
+
+            @Override
+            public long allocatedPerFrame(int width, int height) {
+                return 0;
+            }
+
+            @Override
+            public void process(byte[] image, int width, int height) {
+                renderer.render(image, width, height, PreviewConfig.DEFAULT);
+            }
+        });
+        List<PreviewBenchmark.Result> results = PreviewBenchmark.run(paths, width, height);
+
+        List<PreviewBenchmark.Path> encodePaths = PreviewBenchmark.defaultEncodePaths();
+        encodePaths.add(new PreviewBenchmark.Path() {
+            @Override
+            public String name() {
+                return "bytearray-base64";
+            }
+
+            @Override
+            public long allocatedPerFrame(int width, int height) {
+                // stream buffer growth, toByteArray copy, encoder output, String chars
+                return 2L * width + width + PreviewBenchmark.base64Length(width) * 3;
+            }
+
+            @Override
+            public void process(byte[] image, int width, int height) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                out.write(image, 0, width);
+                Base64.encodeToString(out.toByteArray(), Base64.DEFAULT);
+            }
+        });
+        results.addAll(PreviewBenchmark.run(encodePaths, PreviewBenchmark.DEFAULT_JPEG_BYTES, 1));
+        return results;
+    }
+
+    /**
+     * How previews reach JS: {@link #PREVIEW_MODE_BASE64} puts the JPEG in the event as
+     * {@code imageBase64}; {@link #PREVIEW_MODE_FILE} writes it to a {@link FrameFileRing} cache
+     * file and sends only its path and metadata. Returns the previous mode.
+     */
+    public String setPreviewMode(String mode) {
+        if (!PREVIEW_MODE_BASE64.equals(mode) && !PREVIEW_MODE_FILE.equals(mode)) {
+            throw new IllegalArgumentException("unknown preview mode: " + mode);
+        }
+        String previous = previewMode;
+        previewMode = mode;
+        return previous;
+    }
+
+    public String getPreviewMode() {
+        return previewMode;
+    }
+
+    /**
+     * Applies from the next frame on and returns the config in effect. Throws
+     * IllegalArgumentException for values {@link PreviewConfig} rejects.
+     */
+    public PreviewConfig setPreviewConfig(PreviewConfig config) {
+        previewConfig = config;
+        return config;
+    }
+
+    public PreviewConfig getPreviewConfig() {
+        return previewConfig;
+    }
+
+    /** Encode time and size for every preview setting used since launch. */
+    public List<PreviewConfig.Setting> getPreviewStats() {
+        return previewStats.snapshot();
+    }
+
+    /** The codec actually used for {@code config}: lossless WebP needs API 30. */
+    public static String encodedAs(PreviewConfig config) {
+        if (PreviewConfig.WEBP_LOSSLESS.equals(config.codec) && Build.VERSION.SDK_INT < Build.VERSION_CODES.R) {
+            return "webp-q100";
+        }
+        return config.codec;
+    }
+
+    // runs on the capture processor's worker thread
+    private void sendPreviewToReactNative(long captureId, String base64, Bitmap bitmap, PreviewConfig config, long encodeNanos, int bytes) {
+        WritableMap params = Arguments.createMap();
+        params.putDouble("captureId", captureId);
+        params.putString("imageBase64", base64);
+        params.putString("mimeType", config.mimeType());
+        params.putInt("width", bitmap.getWidth());
+        params.putInt("height", bitmap.getHeight());
+        params.putInt("quality", config.quality);
+        params.putDouble("encodeMs", encodeNanos / 1e6);
+        params.putInt("bytes", bytes);
+        sendEvent("ImageReceivedEvent", params);
+    }
+
+    // runs on the capture processor's worker thread
+    private void sendFrameFileToReactNative(long captureId, final Bitmap bitmap, final PreviewConfig config, int frameWidth, int frameHeight) {
+        FrameFileRing.Frame frame;
+        final long[] encodeNanos = new long[1];
+        try {
+            if (!frameRingOpened) {
+                frameRing.open();
+                frameRingOpened = true;
+            }
+            frame = frameRing.write(captureId, config.extension(), new FrameFileRing.Encoder() {
+                @Override
+                public void encode(OutputStream out) throws IOException {
+                    long start = System.nanoTime();
+                    bitmap.compress(PreviewRenderer.compressFormat(config), PreviewRenderer.compressQuality(config), out);
+                    encodeNanos[0] = System.nanoTime() - start;
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "write preview frame failed", e);
+            return;
+        }
+        previewStats.record(config, encodeNanos[0], frame.bytes);
+        WritableMap params = Arguments.createMap();
+        params.putDouble("captureId", frame.captureId);
+        params.putString("path", frame.file.getAbsolutePath());
+        params.putString("uri", "file://" + frame.file.getAbsolutePath());
+        params.putInt("width", bitmap.getWidth());
+        params.putInt("height", bitmap.getHeight());
+        params.putInt("frameWidth", frameWidth);
+        params.putInt("frameHeight", frameHeight);
+        params.putString("format", config.codec);
+        params.putString("mimeType", config.mimeType());
+        params.putInt("quality", config.quality);
+        params.putDouble("encodeMs", encodeNanos[0] / 1e6);
+        params.putDouble("bytes", frame.bytes);
+        sendEvent("ImageReceivedEvent", params);
+    }
+
+    // runs on the capture processor's worker thread: one copy into a reused buffer
+    private void rememberCapture(long captureId, byte[] image, int width, int height) {
+        synchronized (lastCaptureLock) {
+            if (lastCapture.length != image.length) {
+                lastCapture = new byte[image.length];
+            }
+            System.arraycopy(image, 0, lastCapture, 0, image.length);
+            lastCaptureWidth = width;
+            lastCaptureHeight = height;
+            lastCaptureId = captureId;
+        }
+    }
+
+    /**
+     * Where uploadCapture sends to; the server must speak {@link ChunkedUploader}'s protocol.
+     * Unset by default, so uploadCapture refuses until a screen opts in; captures are only kept
+     * for upload from then on.
+     */
+    public void setUploadEndpoint(String endpoint) {
+        if (null == endpoint || !(endpoint.startsWith("https://") || endpoint.startsWith("http://"))) {
+            throw new IllegalArgumentException("upload endpoint must be an http(s) URL: " + endpoint);
+        }
+        uploadEndpoint = endpoint;
+    }
+
+    public String getUploadEndpoint() {
+        return uploadEndpoint;
+    }
+
+    /**
+     * Streams capture {@code captureId} (0: the newest) at full sensor resolution to the upload
+     * endpoint in {@link #CHUNK_SIZE} chunks, resuming after dropped connections. "png" sends
+     * a lossless greyscale PNG, "raw" the sensor's 8-bit pixels with width and height fields.
+     * Blocks; call it off the UI thread. The image never passes through JS.
+     *
+     * @throws IllegalStateException if no endpoint is set or the capture is gone
+     */
+    public ChunkedUploader.Result uploadCapture(long captureId, String format, Map<String, String> fields,
+                                                ChunkedUploader.Listener listener) throws IOException, InterruptedException {
+        String endpoint = uploadEndpoint;
+        if (null == endpoint) {
+            throw new IllegalStateException("no upload endpoint set");
+        }
+        byte[] raw;
+        int width;
+        int height;
+        synchronized (lastCaptureLock) {
+            if (0 == lastCaptureId || (0 != captureId && captureId != lastCaptureId)) {
+                throw new IllegalStateException("capture " + captureId + " is no longer available, newest is " + lastCaptureId);
+            }
+            captureId = lastCaptureId;
+            raw = lastCapture.clone();
+            width = lastCaptureWidth;
+            height = lastCaptureHeight;
+        }
+        Map<String, String> request = new HashMap<String, String>(fields);
+        request.put("capture_id", String.valueOf(captureId));
+        request.put("image_width", String.valueOf(width));
+        request.put("image_height", String.valueOf(height));
+        request.put("image_format", format);
+        byte[] payload;
+        String contentType;
+        if ("raw".equals(format)) {
+            payload = raw;
+            contentType = "application/octet-stream";
+        } else if ("png".equals(format)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length);
+            ToolUtils.renderCroppedGreyScaleBitmap(raw, width, height).compress(Bitmap.CompressFormat.PNG, 100, out);
+            payload = out.toByteArray();
+            contentType = "image/png";
+        } else {
+            throw new IllegalArgumentException("unknown upload format: " + format);
+        }
+        ChunkedUploader uploader = new ChunkedUploader(endpoint, CHUNK_SIZE, ChunkedUploader.DEFAULT_MAX_RETRIES);
+        ChunkedUploader.Result result = uploader.upload(UUID.randomUUID().toString(), payload, contentType, request, listener);
+        LogHelper.d("uploaded capture " + captureId + ": " + result.bytes + " bytes in " + result.chunks
+                + " chunks, " + result.retries + " retries, " + result.elapsedMs + "ms");
+        return result;
+    }
+
     public String bitmapToBase64(Bitmap bitmap) {
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, 80, byteArrayOutputStream);  // Compressing to JPEG with 80% quality
+        bitmap.compress(Bitmap.CompressFormat.JPEG, PreviewConfig.DEFAULT.quality, byteArrayOutputStream);
         byte[] byteArray = byteArrayOutputStream.toByteArray();
         return Base64.encodeToString(byteArray, Base64.DEFAULT);
     }
 
     public void sendBitmapToReactNative(String base64String) {
-        ReactContext reactContext = getReactNativeHost().getReactInstanceManager().getCurrentReactContext();
         WritableMap params = Arguments.createMap();
         params.putString("imageBase64", base64String);
+        sendEvent("ImageReceivedEvent", params);
+    }
+
+    private boolean hasPreviewListeners() {
+        ReactContext reactContext = getReactNativeHost().getReactInstanceManager().getCurrentReactContext();
+        if (reactContext == null) {
+            return false;
+        }
+        // module not created yet: keep rendering rather than guess
+        ZKTecoModule module = reactContext.getNativeModule(ZKTecoModule.class);
+        return module == null || module.hasListeners("ImageReceivedEvent");
+    }
 
+    public void sendEvent(String eventName, WritableMap params) {
+        ReactContext reactContext = getReactNativeHost().getReactInstanceManager().getCurrentReactContext();
+        if (reactContext == null) {
+            return;
+        }
         reactContext
             .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
-            .emit("ImageReceivedEvent", params);
+            .emit(eventName, params);
+    }
+
+    private void sendGalleryProgress(GalleryLoader.Stats stats, boolean done) {
+        sendGalleryProgress(stats, done, null);
+    }
+
+    // error set: the load stopped short and identify will refuse until the device is reconnected
+    private void sendGalleryProgress(GalleryLoader.Stats stats, boolean done, String error) {
+        WritableMap params = Arguments.createMap();
+        params.putInt("loaded", stats.loaded + stats.failed + stats.invalid);
+        params.putInt("total", stats.total);
+        params.putBoolean("done", done);
+        params.putInt("failed", stats.failed);
+        params.putInt("invalid", stats.invalid);
+        params.putDouble("readMs", stats.readMs);
+        params.putDouble("validateMs", stats.validateMs);
+        params.putDouble("saveMs", stats.saveMs);
+        params.putDouble("elapsedMs", stats.elapsedMs);
+        if (null != error) {
+            params.putString("error", error);
+        }
+        sendEvent("GalleryLoadProgress", params);
+    }
+
+    private void sendAuditProgress(DuplicateAudit.Stats stats, boolean done) {
+        WritableMap params = Arguments.createMap();
+        params.putDouble("run", stats.run);
+        params.putInt("tiles", stats.tiles);
+        params.putInt("tilesDone", stats.tilesDone);
+        params.putDouble("compared", stats.compared);
+        params.putInt("pairs", stats.pairs);
+        params.putDouble("elapsedMs", stats.elapsedMs);
+        params.putBoolean("finished", stats.finished);
+        params.putBoolean("done", done);
+        sendEvent("DuplicateAuditProgress", params);
     }
         
     public FingerprintExceptionListener fingerprintExceptionListener = new FingerprintExceptionListener() {
@@ -539,32 +956,11 @@ public class MainActivity extends ReactActivity {
 
   public void openDevice(){
       createFingerprintSensor();
-      bRegister = false;
-      enroll_index = 0;
+      engine.cancelEnroll();
       isReseted = false;
       try {
           //fingerprintSensor.setCaptureMode(1);
           fingerprintSensor.open(deviceIndex);
-          //load all templates form db
-          if (dbManager.opendb(dbFileName) && dbManager.getCount() > 0)
-          {
-              HashMap<String, String> vUserList;
-              vUserList = dbManager.queryUserList();
-              int ret = 0;
-              if (vUserList.size() > 0)
-              {
-                  for (Map.Entry<String, String> entry : vUserList.entrySet()) {
-                      String strID = entry.getKey();
-                      String strFeature = entry.getValue();
-                      byte[] blobFeature = Base64.decode(strFeature, Base64.NO_WRAP);
-                      ret = ZKFingerService.save(blobFeature, strID);
-                      if (0 != ret)
-                      {
-                          LogHelper.e("add [" + strID + "] template failed, ret=" + ret);
-                      }
-                  }
-              }
-          }
           {
               // device parameter
               LogHelper.d("sdk version" + fingerprintSensor.getSDK_Version());
@@ -572,10 +968,33 @@ public class MainActivity extends ReactActivity {
               LogHelper.d("serial:" + fingerprintSensor.getStrSerialNumber());
               LogHelper.d("width=" + fingerprintSensor.getImageWidth() + ", height=" + fingerprintSensor.getImageHeight());
           }
+          captureProcessor.start();
           fingerprintSensor.setFingerprintCaptureListener(deviceIndex, fingerprintCaptureListener);
         //   fingerprintSensor.SetFingerprintExceptionListener(fingerprintExceptionListener);
           fingerprintSensor.startCapture(deviceIndex);
           bStarted = true;
+          //load all templates form db in the background, identify waits until it is done
+          galleryLoader = new GalleryLoader(dbManager, dbFileName, engine, new GalleryLoader.Listener() {
+              @Override
+              public void onProgress(int loaded, int total) {
+                  WritableMap params = Arguments.createMap();
+                  params.putInt("loaded", loaded);
+                  params.putInt("total", total);
+                  params.putBoolean("done", false);
+                  sendEvent("GalleryLoadProgress", params);
+              }
+
+              @Override
+              public void onReady(GalleryLoader.Stats stats) {
+                  sendGalleryProgress(stats, true);
+              }
+
+              @Override
+              public void onFailed(GalleryLoader.Stats stats, String reason) {
+                  sendGalleryProgress(stats, true, reason);
+              }
+          });
+          galleryLoader.start();
           // textView.setText("connect success!");
             Toast.makeText(this, "connect success!", Toast.LENGTH_SHORT).show();
       } catch (FingerprintException e) {
@@ -591,6 +1010,11 @@ public class MainActivity extends ReactActivity {
   }
 
   public void closeDevice(){
+      if (null != galleryLoader)
+      {
+          galleryLoader.cancel();
+          galleryLoader = null;
+      }
       if (bStarted)
       {
           try {
@@ -599,6 +1023,8 @@ public class MainActivity extends ReactActivity {
           } catch (FingerprintException e) {
               e.printStackTrace();
           }
+          captureProcessor.stop();
+          LogHelper.d("capture processor: " + captureProcessor.getStats());
           bStarted = false;
       }
   }
@@ -629,23 +1055,28 @@ public class MainActivity extends ReactActivity {
 
   public void onBnRegister(View view){
       if (bStarted) {
-          strUid = editText.getText().toString();
+          String strUid = editText.getText().toString();
           if (null == strUid || strUid.isEmpty()) {
               // textView.setText("Please input your user id");
               Toast.makeText(this, "Please input your user id!", Toast.LENGTH_SHORT).show();
-              bRegister = false;
+              engine.cancelEnroll();
+              return;
+          }
+          if (!dbManager.isOpened()) {
+              // the lookup would wait on the UI thread for the open and any migration
+              engine.cancelEnroll();
+              Toast.makeText(this, "Database is still opening, please try again!", Toast.LENGTH_SHORT).show();
               return;
           }
           if (dbManager.isUserExited(strUid)) {
-              bRegister = false;
+              engine.cancelEnroll();
               // textView.setText("The user[" + strUid + "] had registered!");
               Toast.makeText(this, "The user[" + strUid + "] had registered!", Toast.LENGTH_SHORT).show();
               return;
           }
-          bRegister = true;
-          enroll_index = 0;
+          int samples = engine.startEnroll(strUid).getRequiredSamples();
           // textView.setText("Please press your finger 3 times.");
-            Toast.makeText(this, "Please press your finger 3 times.", Toast.LENGTH_SHORT).show();
+            Toast.makeText(this, "Please press your finger " + samples + " times.", Toast.LENGTH_SHORT).show();
       } else {
           // textView.setText("Please start capture first");
           Toast.makeText(this, "Please start capture first!", Toast.LENGTH_SHORT).show();
@@ -654,8 +1085,7 @@ public class MainActivity extends ReactActivity {
 
   public void onBnIdentify(View view){
       if (bStarted) {
-          bRegister = false;
-          enroll_index = 0;
+          engine.cancelEnroll();
       } else {
           // textView.setText("Please start capture first");
           Toast.makeText(this, "Please start capture first!", Toast.LENGTH_SHORT).show();
@@ -674,11 +1104,15 @@ public class MainActivity extends ReactActivity {
 
   public void onBnDelete(View view){
       if (bStarted) {
-          strUid = editText.getText().toString();
+          final String strUid = editText.getText().toString();
           if (null == strUid || strUid.isEmpty()) {
               textView.setText("Please input your user id");
               return;
           }
+          if (!dbManager.isOpened()) {
+              textView.setText("Database is still opening, please try again");
+              return;
+          }
           if (!dbManager.isUserExited(strUid)) {
               textView.setText("The user no registered");
               return;
@@ -689,12 +1123,17 @@ public class MainActivity extends ReactActivity {
                   .setPositiveButton("Yes", new DialogInterface.OnClickListener() {
                       @Override
                       public void onClick(DialogInterface dialog, int which) {
-                          if (dbManager.deleteUser(strUid)) {
-                              ZKFingerService.del(strUid);
-                              setResult("Delete success !");
-                          } else {
-                              setResult("Open db fail !");
-                          }
+                          dbManager.submitDeleteUser(strUid, new DBManager.WriteListener<Boolean>() {
+                              @Override
+                              public void onWritten(Boolean deleted, Throwable error) {
+                                  if (Boolean.TRUE.equals(deleted)) {
+                                      engine.deleteUser(strUid);
+                                      setResult("Delete success !");
+                                  } else {
+                                      setResult("Open db fail !");
+                                  }
+                              }
+                          });
                       }
                   })
                   .setNegativeButton("No", new DialogInterface.OnClickListener() {
@@ -713,12 +1152,17 @@ public class MainActivity extends ReactActivity {
                   .setPositiveButton("Yes", new DialogInterface.OnClickListener() {
                       @Override
                       public void onClick(DialogInterface dialog, int which) {
-                          if (dbManager.clear()) {
-                              ZKFingerService.clear();
-                              setResult("Clear success！");
-                          } else {
-                              setResult("Open db fail！");
-                          }
+                          dbManager.submitClear(new DBManager.WriteListener<Boolean>() {
+                              @Override
+                              public void onWritten(Boolean cleared, Throwable error) {
+                                  if (Boolean.TRUE.equals(cleared)) {
+                                      engine.clearGallery();
+                                      setResult("Clear success！");
+                                  } else {
+                                      setResult("Open db fail！");
+                                  }
+                              }
+                          });
                       }
                   })
                   .setNegativeButton("no", new DialogInterface.OnClickListener() {
@@ -738,6 +1182,8 @@ public class MainActivity extends ReactActivity {
       {
           closeDevice();
       }
+      // the checkpoint lets the next session pick the audit up where it stopped
+      cancelDuplicateAudit();
       zkusbManager.unRegisterUSBPermissionReceiver();
   }
 }
@@ -0,0 +1,445 @@
+package com.womenfirst;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Template store backed by one memory-mapped file of fixed-size records, for kiosks where
+ * cold start time matters more than query flexibility. Gallery warm-up walks the mapped
+ * buffer directly; there is no cursor window and no per-row SQL.
+ *
+ * <pre>
+ * header  : magic | version | capacity | freeHead | highWater            (HEADER_SIZE bytes)
+ * record  : state | nextFree | pinLen | pin[PIN_CAPACITY] | projectLen | project[PIN_CAPACITY]
+ *           | length | template[2048] | crc
+ * </pre>
+ *
+ * Deleted records are chained into a free list through {@code nextFree} and reused by the
+ * next insert, so the file never needs compaction. The header's free list head and high-water
+ * mark are only a record of the last write: open rebuilds both from the record states. The CRC covers the template bytes, the
+ * same value {@link DBManager} keeps in feature_crc; a record that fails it on open (torn
+ * write after power loss) is dropped onto the free list. {@link #modifyUser} never overwrites
+ * a live record: the new one is written to a free slot and forced to storage before the old
+ * slot is freed, so a torn update leaves the user with the old template rather than none.
+ * Writes land in the page cache immediately and survive a process crash; call
+ * {@link #flush()} to force them to storage.
+ *
+ * <p>A file of any other format version is refused; no file of an earlier layout was shipped.
+ */
+public class MappedTemplateStore implements TemplateStore {
+    private static final String TAG = "MappedTemplateStore";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int MAGIC = 0x5a4b5453; // "ZKTS"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int H_MAGIC = 0;
+    private static final int H_VERSION = 4;
+    private static final int H_CAPACITY = 8;
+    private static final int H_FREE_HEAD = 12;
+    private static final int H_HIGH_WATER = 16;
+
+    static final int PIN_CAPACITY = 64;
+    static final int TEMPLATE_CAPACITY = DBManager.TEMPLATE_BUFFER_SIZE;
+    private static final int R_STATE = 0;
+    private static final int R_NEXT_FREE = 4;
+    private static final int R_PIN_LEN = 8;
+    private static final int R_PIN = 10;
+    private static final int R_PROJECT_LEN = R_PIN + PIN_CAPACITY;
+    private static final int R_PROJECT = R_PROJECT_LEN + 2;
+    private static final int R_LENGTH = R_PROJECT + PIN_CAPACITY;
+    private static final int R_TEMPLATE = R_LENGTH + 4;
+    private static final int R_CRC = R_TEMPLATE + TEMPLATE_CAPACITY;
+    static final int RECORD_SIZE = R_CRC + 4;
+
+    private static final int STATE_FREE = 0;
+    private static final int STATE_LIVE = 1;
+    /** written by modifyUser, live once the record it replaces is freed */
+    private static final int STATE_REPLACING = 2;
+    private static final int NO_SLOT = -1;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private RandomAccessFile file = null;
+    private FileChannel channel = null;
+    private MappedByteBuffer mapped = null;
+    private int capacity = 0;
+    private int freeHead = NO_SLOT;
+    private int highWater = 0;
+    private final HashMap<String, Integer> slots = new HashMap<String, Integer>();
+    private final CRC32 crc = new CRC32();
+    private final byte[] pinBuffer = new byte[PIN_CAPACITY];
+    private final byte[] templateBuffer = new byte[TEMPLATE_CAPACITY];
+
+    @Override
+    public synchronized boolean opendb(String fileName)
+    {
+        if (null != mapped)
+        {
+            return true;
+        }
+        try {
+            file = new RandomAccessFile(fileName, "rw");
+            channel = file.getChannel();
+            if (channel.size() < HEADER_SIZE)
+            {
+                map(INITIAL_CAPACITY);
+                mapped.putInt(H_MAGIC, MAGIC);
+                mapped.putInt(H_VERSION, FORMAT_VERSION);
+                freeHead = NO_SLOT;
+                highWater = 0;
+                writeHeader();
+                return true;
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            channel.read(header, 0);
+            if (header.getInt(H_MAGIC) != MAGIC)
+            {
+                Log.e(TAG, "unrecognised template file " + fileName);
+                close();
+                return false;
+            }
+            if (header.getInt(H_VERSION) != FORMAT_VERSION)
+            {
+                Log.e(TAG, "unsupported template file version " + header.getInt(H_VERSION) + ": " + fileName);
+                close();
+                return false;
+            }
+            map(header.getInt(H_CAPACITY));
+            buildIndex();
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "open " + fileName + " failed", e);
+            close();
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized void close()
+    {
+        if (null != mapped)
+        {
+            mapped.force();
+            mapped = null;
+        }
+        try {
+            if (null != file)
+            {
+                file.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "close failed", e);
+        }
+        file = null;
+        channel = null;
+        slots.clear();
+    }
+
+    public synchronized void flush()
+    {
+        if (null != mapped)
+        {
+            mapped.force();
+        }
+    }
+
+    private void map(int newCapacity) throws IOException
+    {
+        mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * RECORD_SIZE);
+        capacity = newCapacity;
+        mapped.putInt(H_CAPACITY, capacity);
+    }
+
+    private void writeHeader()
+    {
+        mapped.putInt(H_FREE_HEAD, freeHead);
+        mapped.putInt(H_HIGH_WATER, highWater);
+    }
+
+    private static int offset(int slot)
+    {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * Rebuilds the pin index, the free list and the high-water mark from the record states.
+     * The header's copies are not trusted: a crash between writing a record and writing the
+     * header can leave a live slot on the stored free list, where the next insert would
+     * overwrite it.
+     */
+    private void buildIndex()
+    {
+        slots.clear();
+        boolean[] used = new boolean[capacity];
+        HashMap<String, Integer> replacements = new HashMap<String, Integer>();
+        for (int slot = 0; slot < capacity; slot++) {
+            int base = offset(slot);
+            int state = mapped.getInt(base + R_STATE);
+            if (state != STATE_LIVE && state != STATE_REPLACING)
+            {
+                continue;
+            }
+            String pin = readPin(base);
+            if (null == pin || checksum(base) != mapped.getInt(base + R_CRC))
+            {
+                Log.e(TAG, "drop corrupt record in slot " + slot);
+                mapped.putInt(base + R_STATE, STATE_FREE);
+                continue;
+            }
+            used[slot] = true;
+            if (state == STATE_REPLACING)
+            {
+                replacements.put(pin, slot);
+            }
+            else
+            {
+                slots.put(pin, slot);
+            }
+        }
+        // modifyUser stopped after its new record was complete: finish the switch
+        for (Map.Entry<String, Integer> replacement : replacements.entrySet()) {
+            Integer old = slots.put(replacement.getKey(), replacement.getValue());
+            if (null != old)
+            {
+                used[old] = false;
+                mapped.putInt(offset(old) + R_STATE, STATE_FREE);
+            }
+            mapped.putInt(offset(replacement.getValue()) + R_STATE, STATE_LIVE);
+        }
+        highWater = used.length;
+        while (highWater > 0 && !used[highWater - 1]) {
+            highWater--;
+        }
+        // chained from the top down, so the lowest free slot is reused first
+        freeHead = NO_SLOT;
+        for (int slot = highWater - 1; slot >= 0; slot--) {
+            if (!used[slot])
+            {
+                release(slot);
+            }
+        }
+        writeHeader();
+    }
+
+    private String readPin(int base)
+    {
+        int pinLength = mapped.getShort(base + R_PIN_LEN);
+        if (pinLength <= 0 || pinLength > PIN_CAPACITY)
+        {
+            return null;
+        }
+        mapped.position(base + R_PIN);
+        mapped.get(pinBuffer, 0, pinLength);
+        return new String(pinBuffer, 0, pinLength, UTF_8);
+    }
+
+    private String readProject(int base)
+    {
+        int projectLength = mapped.getShort(base + R_PROJECT_LEN);
+        if (projectLength <= 0 || projectLength > PIN_CAPACITY)
+        {
+            return DBManager.NO_PROJECT;
+        }
+        mapped.position(base + R_PROJECT);
+        mapped.get(pinBuffer, 0, projectLength);
+        return new String(pinBuffer, 0, projectLength, UTF_8);
+    }
+
+    private int readTemplate(int base)
+    {
+        int length = mapped.getInt(base + R_LENGTH);
+        mapped.position(base + R_TEMPLATE);
+        mapped.get(templateBuffer, 0, TEMPLATE_CAPACITY);
+        return length;
+    }
+
+    private int checksum(int base)
+    {
+        int length = readTemplate(base);
+        if (length < 0 || length > TEMPLATE_CAPACITY)
+        {
+            return ~mapped.getInt(base + R_CRC);
+        }
+        crc.reset();
+        crc.update(templateBuffer, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private void writeRecord(int slot, byte[] pin, byte[] project, byte[] feature, int length, int state)
+    {
+        int base = offset(slot);
+        mapped.putShort(base + R_PIN_LEN, (short) pin.length);
+        mapped.position(base + R_PIN);
+        mapped.put(pin);
+        mapped.putShort(base + R_PROJECT_LEN, (short) project.length);
+        mapped.position(base + R_PROJECT);
+        mapped.put(project);
+        mapped.putInt(base + R_LENGTH, length);
+        mapped.position(base + R_TEMPLATE);
+        mapped.put(feature, 0, length);
+        for (int i = length; i < TEMPLATE_CAPACITY; i++) {
+            mapped.put((byte) 0);
+        }
+        crc.reset();
+        crc.update(feature, 0, length);
+        mapped.putInt(base + R_CRC, (int) crc.getValue());
+        mapped.putInt(base + R_STATE, state);
+    }
+
+    private int allocate() throws IOException
+    {
+        if (freeHead != NO_SLOT)
+        {
+            int slot = freeHead;
+            freeHead = mapped.getInt(offset(slot) + R_NEXT_FREE);
+            return slot;
+        }
+        if (highWater == capacity)
+        {
+            map(capacity * 2);
+        }
+        return highWater++;
+    }
+
+    private void release(int slot)
+    {
+        int base = offset(slot);
+        mapped.putInt(base + R_STATE, STATE_FREE);
+        mapped.putInt(base + R_NEXT_FREE, freeHead);
+        freeHead = slot;
+    }
+
+    @Override
+    public synchronized boolean isUserExited(String pin)
+    {
+        return slots.containsKey(pin);
+    }
+
+    @Override
+    public boolean insertUser(String pin, byte[] feature, int length)
+    {
+        return insertUser(pin, DBManager.NO_PROJECT, feature, length);
+    }
+
+    @Override
+    public synchronized boolean insertUser(String pin, String project, byte[] feature, int length)
+    {
+        byte[] pinBytes = pin.getBytes(UTF_8);
+        byte[] projectBytes = (null == project ? DBManager.NO_PROJECT : project).getBytes(UTF_8);
+        if (null == mapped || slots.containsKey(pin) || pinBytes.length > PIN_CAPACITY
+                || projectBytes.length > PIN_CAPACITY || length > TEMPLATE_CAPACITY)
+        {
+            return false;
+        }
+        try {
+            int slot = allocate();
+            writeRecord(slot, pinBytes, projectBytes, feature, length, STATE_LIVE);
+            writeHeader();
+            slots.put(pin, slot);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "grow failed", e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean modifyUser(String pin, byte[] feature, int length)
+    {
+        Integer slot = null == mapped ? null : slots.get(pin);
+        if (null == slot || length > TEMPLATE_CAPACITY)
+        {
+            return false;
+        }
+        try {
+            // keeps the project the user was enrolled in
+            byte[] project = readProject(offset(slot)).getBytes(UTF_8);
+            int replacement = allocate();
+            writeRecord(replacement, pin.getBytes(UTF_8), project, feature, length, STATE_REPLACING);
+            writeHeader();
+            // the new record must be on storage before the old one stops being live
+            mapped.force();
+            release(slot);
+            mapped.putInt(offset(replacement) + R_STATE, STATE_LIVE);
+            writeHeader();
+            slots.put(pin, replacement);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "grow failed", e);
+            return false;
+        }
+    }
+
+    @Override
+    public synchronized boolean deleteUser(String pin)
+    {
+        Integer slot = null == mapped ? null : slots.remove(pin);
+        if (null == slot)
+        {
+            return false;
+        }
+        release(slot);
+        writeHeader();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean clear()
+    {
+        if (null == mapped)
+        {
+            return false;
+        }
+        for (int slot = 0; slot < highWater; slot++) {
+            mapped.putInt(offset(slot) + R_STATE, STATE_FREE);
+        }
+        slots.clear();
+        freeHead = NO_SLOT;
+        highWater = 0;
+        writeHeader();
+        mapped.force();
+        return true;
+    }
+
+    @Override
+    public synchronized int getCount()
+    {
+        return slots.size();
+    }
+
+    /** Walks the records in file order; {@code pageSize} is ignored since nothing is paged in. */
+    @Override
+    public synchronized int forEachTemplate(int pageSize, TemplateVisitor visitor)
+    {
+        if (null == mapped)
+        {
+            return 0;
+        }
+        int visited = 0;
+        for (int slot = 0; slot < highWater; slot++) {
+            int base = offset(slot);
+            if (mapped.getInt(base + R_STATE) != STATE_LIVE)
+            {
+                continue;
+            }
+            String pin = readPin(base);
+            String project = readProject(base);
+            int length = readTemplate(base);
+            visited++;
+            if (!visitor.visit(pin, project, templateBuffer, length, mapped.getInt(base + R_CRC)))
+            {
+                break;
+            }
+        }
+        return visited;
+    }
+}
@@ -0,0 +1,174 @@
+package com.womenfirst;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Identification benchmarks over {@link SimulatedTemplateMatcher}. Pure Java: runs on the
+ * device through {@code ZKTecoModule} and in the JVM unit tests.
+ */
+public class MatcherBenchmark {
+    public static final int[] DEFAULT_GALLERY_SIZES = new int[] { 1000, 10000, 50000 };
+    private static final int PROBES = 20;
+    /** bytes changed in a probe relative to its enrolled template, about 10% */
+    private static final int PROBE_NOISE = 200;
+
+    public static class Result {
+        public String name;
+        public int gallerySize;
+        public int shards;
+        public int cores;
+        public double avgMs;
+        public double p95Ms;
+
+        @Override
+        public String toString() {
+            return name + " gallery=" + gallerySize + " shards=" + shards + " cores=" + cores
+                    + String.format(" avg=%.2fms p95=%.2fms", avgMs, p95Ms);
+        }
+    }
+
+    /** 1:N identify latency for every gallery size and shard count combination. */
+    public static List<Result> identifyLatency(int[] gallerySizes, int[] shardCounts)
+    {
+        List<Result> results = new ArrayList<Result>();
+        Random random = new Random(42);
+        for (int size : gallerySizes) {
+            byte[][] gallery = randomTemplates(random, size);
+            byte[][] probes = new byte[PROBES][];
+            for (int i = 0; i < PROBES; i++) {
+                probes[i] = noisyCopy(random, gallery[random.nextInt(size)]);
+            }
+            for (int shardCount : shardCounts) {
+                TemplateMatcher matcher = new ShardedTemplateMatcher(shardCount, new ShardedTemplateMatcher.ShardFactory() {
+                    @Override
+                    public TemplateMatcher create(int shard) {
+                        return new SimulatedTemplateMatcher();
+                    }
+                });
+                for (int i = 0; i < size; i++) {
+                    matcher.save(gallery[i], "user" + i);
+                }
+                byte[] result = new byte[256];
+                long[] nanos = new long[PROBES];
+                matcher.identify(probes[0], result, FingerprintEngine.IDENTIFY_THRESHOLD, 1); // warm-up
+                for (int i = 0; i < PROBES; i++) {
+                    long start = System.nanoTime();
+                    matcher.identify(probes[i], result, FingerprintEngine.IDENTIFY_THRESHOLD, 1);
+                    nanos[i] = System.nanoTime() - start;
+                }
+                results.add(summarize("identify", size, shardCount, nanos));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Time of one enrollment at each gallery size, start to saved template. "enroll-per-press"
+     * replays the old flow, a 1:N duplicate identify before every one of the three samples.
+     * "enroll-merged-check" is {@link FingerprintEngine#doRegister}: 1:1 checks per press and
+     * one identify on the merged template.
+     */
+    public static List<Result> enrollmentLatency(int[] gallerySizes)
+    {
+        List<Result> results = new ArrayList<Result>();
+        Random random = new Random(7);
+        for (int size : gallerySizes) {
+            SimulatedTemplateMatcher matcher = new SimulatedTemplateMatcher();
+            FingerprintEngine engine = new FingerprintEngine(matcher, new FingerprintEngine.Listener() {
+                @Override
+                public void onResult(String message) {
+                }
+
+                @Override
+                public void onEnrolled(String pin, String project, byte[] template, int length) {
+                }
+            });
+            byte[][] gallery = randomTemplates(random, size);
+            for (int i = 0; i < size; i++) {
+                engine.addToGallery(gallery[i], "user" + i, DBManager.NO_PROJECT);
+            }
+            byte[][][] samples = new byte[PROBES][EnrollmentSession.DEFAULT_SAMPLES][];
+            for (byte[][] finger : samples) {
+                byte[] template = randomTemplates(random, 1)[0];
+                for (int j = 0; j < finger.length; j++) {
+                    finger[j] = noisyCopy(random, template);
+                }
+            }
+            long[] perPress = new long[PROBES];
+            long[] merged = new long[PROBES];
+            byte[] result = new byte[256];
+            byte[] out = new byte[FingerprintEngine.TEMPLATE_SIZE];
+            for (int i = 0; i < PROBES; i++) {
+                String pin = "enroll" + i;
+                long start = System.nanoTime();
+                for (int j = 0; j < samples[i].length; j++) {
+                    matcher.identify(samples[i][j], result, FingerprintEngine.IDENTIFY_THRESHOLD, 1);
+                    if (j > 0)
+                    {
+                        matcher.verify(samples[i][j - 1], samples[i][j]);
+                    }
+                }
+                matcher.merge(samples[i][0], samples[i][1], samples[i][2], out);
+                matcher.save(out, pin);
+                perPress[i] = System.nanoTime() - start;
+                matcher.del(pin);
+
+                start = System.nanoTime();
+                engine.startEnroll(pin);
+                for (byte[] sample : samples[i]) {
+                    engine.doRegister(sample);
+                }
+                merged[i] = System.nanoTime() - start;
+                engine.deleteUser(pin);
+            }
+            results.add(summarize("enroll-per-press", size, 1, perPress));
+            results.add(summarize("enroll-merged-check", size, 1, merged));
+        }
+        return results;
+    }
+
+    static Result summarize(String name, int gallerySize, int shards, long[] nanos)
+    {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        long total = 0;
+        for (long n : sorted) {
+            total += n;
+        }
+        Result result = new Result();
+        result.name = name;
+        result.gallerySize = gallerySize;
+        result.shards = shards;
+        result.cores = Runtime.getRuntime().availableProcessors();
+        result.avgMs = total / 1e6 / sorted.length;
+        result.p95Ms = sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.95) - 1)] / 1e6;
+        return result;
+    }
+
+    static byte[][] randomTemplates(Random random, int count)
+    {
+        byte[][] templates = new byte[count][FingerprintEngine.TEMPLATE_SIZE];
+        for (byte[] template : templates) {
+            random.nextBytes(template);
+        }
+        return templates;
+    }
+
+    static byte[] noisyCopy(Random random, byte[] template)
+    {
+        byte[] copy = template.clone();
+        for (int i = 0; i < PROBE_NOISE; i++) {
+            copy[random.nextInt(copy.length)] ^= (byte) (1 + random.nextInt(255));
+        }
+        return copy;
+    }
+
+    static int[] defaultShardCounts()
+    {
+        int cores = Runtime.getRuntime().availableProcessors();
+        return cores > 2 ? new int[] { 1, 2, cores } : new int[] { 1, 2 };
+    }
+}
@@ -0,0 +1,121 @@
+package com.womenfirst;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps one gallery per partition (project / site), so a scoped identify only compares
+ * against that partition's users. Like {@link ShardedTemplateMatcher} it needs matchers with
+ * their own galleries; over the ZKTeco SDK {@link FingerprintEngine} scopes by filtering
+ * candidates instead.
+ */
+public class PartitionedTemplateMatcher implements TemplateMatcher {
+
+    public interface PartitionFactory {
+        TemplateMatcher create(String partition);
+    }
+
+    private final PartitionFactory factory;
+    private final Map<String, TemplateMatcher> partitions = new HashMap<String, TemplateMatcher>();
+    private final Map<String, String> partitionOf = new HashMap<String, String>();
+
+    public PartitionedTemplateMatcher(PartitionFactory factory)
+    {
+        this.factory = factory;
+    }
+
+    /** Places {@code id} in {@code partition}; call before {@link #save}. */
+    public synchronized void assign(String id, String partition)
+    {
+        partitionOf.put(id, null == partition ? "" : partition);
+    }
+
+    private synchronized TemplateMatcher partition(String partition, boolean create)
+    {
+        TemplateMatcher matcher = partitions.get(partition);
+        if (null == matcher && create)
+        {
+            matcher = factory.create(partition);
+            partitions.put(partition, matcher);
+        }
+        return matcher;
+    }
+
+    private synchronized TemplateMatcher partitionOf(String id)
+    {
+        String partition = partitionOf.get(id);
+        return partition(null == partition ? "" : partition, true);
+    }
+
+    /** Identify against one partition only; no match if the partition is empty. */
+    public int identifyInScope(String scope, byte[] template, byte[] result, int threshold, int count)
+    {
+        TemplateMatcher matcher = partition(scope, false);
+        if (null == matcher)
+        {
+            new CandidateList(0).write(result);
+            return 0;
+        }
+        return matcher.identify(template, result, threshold, count);
+    }
+
+    /** Unscoped identify: searches every partition and keeps the best candidates overall. */
+    @Override
+    public int identify(byte[] template, byte[] result, int threshold, int count)
+    {
+        TemplateMatcher[] all;
+        synchronized (this) {
+            all = partitions.values().toArray(new TemplateMatcher[partitions.size()]);
+        }
+        CandidateList candidates = new CandidateList(count);
+        byte[] partitionResult = new byte[result.length];
+        for (TemplateMatcher matcher : all) {
+            // the last partition's candidates must not show through a shorter result
+            Arrays.fill(partitionResult, (byte) 0);
+            if (matcher.identify(template, partitionResult, threshold, count) > 0)
+            {
+                candidates.parse(partitionResult);
+            }
+        }
+        return candidates.write(result);
+    }
+
+    @Override
+    public int verify(byte[] template1, byte[] template2)
+    {
+        return partition("", true).verify(template1, template2);
+    }
+
+    @Override
+    public int merge(byte[] template1, byte[] template2, byte[] template3, byte[] out)
+    {
+        return partition("", true).merge(template1, template2, template3, out);
+    }
+
+    @Override
+    public int save(byte[] template, String id)
+    {
+        return partitionOf(id).save(template, id);
+    }
+
+    @Override
+    public void del(String id)
+    {
+        partitionOf(id).del(id);
+        synchronized (this) {
+            partitionOf.remove(id);
+        }
+    }
+
+    @Override
+    public void clear()
+    {
+        synchronized (this) {
+            for (TemplateMatcher matcher : partitions.values()) {
+                matcher.clear();
+            }
+            partitionOf.clear();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.womenfirst;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Dense int ids for gallery pins, looked up straight from the UTF-8 bytes of an identify
+ * result buffer, so parsing a result never builds a String. Ids are stable until
+ * {@link #clear}; a deleted user keeps its id, which is reused if the pin is enrolled again.
+ */
+public class PinIndex {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    public static final int NOT_FOUND = -1;
+
+    private String[] pins = new String[64];
+    private byte[][] encoded = new byte[64][];
+    private int[] hashes = new int[64];
+    /** open-addressing table of id + 1, 0 marks an empty slot */
+    private int[] table = new int[128];
+    private int size = 0;
+
+    /** @return the pin's id, assigning the next one if the pin is new */
+    public synchronized int add(String pin)
+    {
+        byte[] bytes = pin.getBytes(UTF_8);
+        int hash = hash(bytes, 0, bytes.length);
+        int id = find(bytes, 0, bytes.length, hash);
+        if (id != NOT_FOUND)
+        {
+            return id;
+        }
+        if (size == pins.length)
+        {
+            pins = Arrays.copyOf(pins, size * 2);
+            encoded = Arrays.copyOf(encoded, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        id = size++;
+        pins[id] = pin;
+        encoded[id] = bytes;
+        hashes[id] = hash;
+        if (size * 2 > table.length)
+        {
+            rehash(table.length * 2);
+        }
+        else
+        {
+            insert(id);
+        }
+        return id;
+    }
+
+    /** Looks up the pin spelled by {@code bytes[offset, offset + length)}; allocation free. */
+    public synchronized int find(byte[] bytes, int offset, int length)
+    {
+        return find(bytes, offset, length, hash(bytes, offset, length));
+    }
+
+    /** @return the pin with this id, or null for an unknown id */
+    public synchronized String pin(int id)
+    {
+        return id >= 0 && id < size ? pins[id] : null;
+    }
+
+    public synchronized int size()
+    {
+        return size;
+    }
+
+    public synchronized void clear()
+    {
+        Arrays.fill(pins, 0, size, null);
+        Arrays.fill(encoded, 0, size, null);
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    private int find(byte[] bytes, int offset, int length, int hash)
+    {
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            int id = table[slot] - 1;
+            if (hashes[id] == hash && equals(encoded[id], bytes, offset, length))
+            {
+                return id;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    private void insert(int id)
+    {
+        int mask = table.length - 1;
+        int slot = hashes[id] & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    private void rehash(int capacity)
+    {
+        table = new int[capacity];
+        for (int id = 0; id < size; id++) {
+            insert(id);
+        }
+    }
+
+    private static boolean equals(byte[] pin, byte[] bytes, int offset, int length)
+    {
+        if (pin.length != length)
+        {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (pin[i] != bytes[offset + i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length)
+    {
+        int hash = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ bytes[i]) * 0x01000193;
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,237 @@
+package com.womenfirst;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times the preview path in two steps. Resize: raw greyscale sensor frame in, 100x100 ARGB
+ * pixels out. Encode: JPEG bytes in, Base64 text out (JPEG compression itself is the same for
+ * every path and left out).
+ *
+ * <p>{@link #defaultPaths} and {@link #defaultEncodePaths} are pure Java, so the unit tests run
+ * them on the JVM: "render-scale" mirrors the old resize (full-size ARGB render, then a bilinear
+ * scale into a new image), "area-average" is {@link PreviewDownsampler} and "base64-sink" is
+ * {@link Base64Sink}. On the device, {@code MainActivity} adds the old and new paths through
+ * real {@code Bitmap}s and {@code android.util.Base64}.
+ *
+ * <p>Where the VM reports per-thread allocation (HotSpot, not ART), {@link Result#allocatedBytes}
+ * is measured over the timed frames; elsewhere it is the path's own estimate.
+ * {@link #allocationBudget} is what a pooled path may allocate per frame.
+ */
+public class PreviewBenchmark {
+    public static final int DEFAULT_WIDTH = 300;
+    public static final int DEFAULT_HEIGHT = 400;
+    public static final int PREVIEW_SIZE = 100;
+    /** typical size of a 100x100 JPEG preview at quality 80 */
+    public static final int DEFAULT_JPEG_BYTES = 3 * 1024;
+    private static final int WARMUP = 20;
+    private static final int FRAMES = 200;
+
+    public interface Path {
+        String name();
+
+        /** Bytes of new buffers one frame needs after warm-up. */
+        long allocatedPerFrame(int width, int height);
+
+        void process(byte[] image, int width, int height);
+    }
+
+    public static class Result {
+        public String name;
+        public int width;
+        public int height;
+        public double avgMs;
+        public double p95Ms;
+        public long allocatedBytes;
+        /** true if allocatedBytes was measured rather than estimated */
+        public boolean measured;
+
+        @Override
+        public String toString() {
+            return name + " frame=" + width + "x" + height
+                    + String.format(" avg=%.3fms p95=%.3fms", avgMs, p95Ms) + " alloc=" + allocatedBytes + "B/frame" + (measured ? "" : " (estimate)");
+        }
+    }
+
+    public static List<Path> defaultPaths()
+    {
+        List<Path> paths = new ArrayList<Path>();
+        paths.add(new Path() {
+            @Override
+            public String name() {
+                return "render-scale";
+            }
+
+            @Override
+            public long allocatedPerFrame(int width, int height) {
+                return 4L * width * height + 4L * PREVIEW_SIZE * PREVIEW_SIZE;
+            }
+
+            @Override
+            public void process(byte[] image, int width, int height) {
+                renderAndScale(image, width, height);
+            }
+        });
+        paths.add(new Path() {
+            private final PreviewDownsampler downsampler = new PreviewDownsampler(PREVIEW_SIZE, PREVIEW_SIZE);
+            private final int[] argb = new int[PREVIEW_SIZE * PREVIEW_SIZE];
+
+            @Override
+            public String name() {
+                return "area-average";
+            }
+
+            @Override
+            public long allocatedPerFrame(int width, int height) {
+                return 0;
+            }
+
+            @Override
+            public void process(byte[] image, int width, int height) {
+                downsampler.downsample(image, width, height);
+                downsampler.toArgb(argb);
+            }
+        });
+        return paths;
+    }
+
+    /** Encode paths over a JPEG-sized payload; width is the payload length, height is 1. */
+    public static List<Path> defaultEncodePaths()
+    {
+        List<Path> paths = new ArrayList<Path>();
+        paths.add(new Path() {
+            private final Base64Sink sink = new Base64Sink(DEFAULT_JPEG_BYTES);
+
+            @Override
+            public String name() {
+                return "base64-sink";
+            }
+
+            @Override
+            public long allocatedPerFrame(int width, int height) {
+                return base64Length(width) * 2L; // the String's chars
+            }
+
+            @Override
+            public void process(byte[] image, int width, int height) {
+                sink.reset();
+                sink.write(image, 0, width);
+                sink.toString();
+            }
+        });
+        return paths;
+    }
+
+    public static long base64Length(int bytes)
+    {
+        return (bytes + 2) / 3 * 4L;
+    }
+
+    public static List<Result> run(List<Path> paths, int width, int height)
+    {
+        byte[][] frames = new byte[4][width * height];
+        Random random = new Random(3);
+        for (byte[] frame : frames) {
+            random.nextBytes(frame);
+        }
+        List<Result> results = new ArrayList<Result>();
+        for (Path path : paths) {
+            for (int i = 0; i < WARMUP; i++) {
+                path.process(frames[i % frames.length], width, height);
+            }
+            long[] nanos = new long[FRAMES];
+            long allocatedBefore = threadAllocatedBytes();
+            for (int i = 0; i < FRAMES; i++) {
+                long start = System.nanoTime();
+                path.process(frames[i % frames.length], width, height);
+                nanos[i] = System.nanoTime() - start;
+            }
+            long allocatedAfter = threadAllocatedBytes();
+            Arrays.sort(nanos);
+            long total = 0;
+            for (long n : nanos) {
+                total += n;
+            }
+            Result result = new Result();
+            result.name = path.name();
+            result.width = width;
+            result.height = height;
+            result.avgMs = total / 1e6 / FRAMES;
+            result.p95Ms = nanos[(int) (FRAMES * 0.95) - 1] / 1e6;
+            result.measured = allocatedBefore >= 0 && allocatedAfter >= 0;
+            result.allocatedBytes = result.measured
+                    ? (allocatedAfter - allocatedBefore) / FRAMES
+                    : path.allocatedPerFrame(width, height);
+            results.add(result);
+        }
+        return results;
+    }
+
+    /** The old path without Android: greyscale to full-size ARGB, then bilinear downscale. */
+    private static int[] renderAndScale(byte[] image, int width, int height)
+    {
+        int[] argb = new int[width * height];
+        for (int i = 0; i < argb.length; i++) {
+            int grey = image[i] & 0xFF;
+            argb[i] = 0xFF000000 | grey << 16 | grey << 8 | grey;
+        }
+        int outWidth = width > height ? PREVIEW_SIZE : Math.max(1, PREVIEW_SIZE * width / height);
+        int outHeight = width > height ? Math.max(1, PREVIEW_SIZE * height / width) : PREVIEW_SIZE;
+        int[] scaled = new int[outWidth * outHeight];
+        float xRatio = (float) (width - 1) / outWidth;
+        float yRatio = (float) (height - 1) / outHeight;
+        for (int y = 0; y < outHeight; y++) {
+            float sy = y * yRatio;
+            int y0 = (int) sy;
+            float fy = sy - y0;
+            for (int x = 0; x < outWidth; x++) {
+                float sx = x * xRatio;
+                int x0 = (int) sx;
+                float fx = sx - x0;
+                int a = argb[y0 * width + x0] & 0xFF;
+                int b = argb[y0 * width + x0 + 1] & 0xFF;
+                int c = argb[(y0 + 1) * width + x0] & 0xFF;
+                int d = argb[(y0 + 1) * width + x0 + 1] & 0xFF;
+                int grey = (int) (a * (1 - fx) * (1 - fy) + b * fx * (1 - fy) + c * (1 - fx) * fy + d * fx * fy);
+                scaled[y * outWidth + x] = 0xFF000000 | grey << 16 | grey << 8 | grey;
+            }
+        }
+        return scaled;
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread, or -1 where the VM cannot say. Looked up
+     * reflectively because {@code java.lang.management} does not exist on Android.
+     */
+    static long threadAllocatedBytes()
+    {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(bean))
+            {
+                return -1;
+            }
+            return (Long) type.getMethod("getThreadAllocatedBytes", long.class).invoke(bean, Thread.currentThread().getId());
+        } catch (Exception e) {
+            return -1;
+        } catch (LinkageError e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Bytes per frame a pooled path may allocate in steady state: nothing but its output String
+     * (Latin-1 bytes, or chars) and the object headers. -1 for a path without a budget.
+     */
+    public static long allocationBudget(Result result)
+    {
+        if ("base64-sink".equals(result.name))
+        {
+            return base64Length(DEFAULT_JPEG_BYTES) * 2 + 256;
+        }
+        return "area-average".equals(result.name) ? 256 : -1;
+    }
+}
@@ -0,0 +1,123 @@
+package com.womenfirst;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Size, codec and quality of the preview sent to JS, set per screen through
+ * {@code ZKTecoModule.setPreviewConfig}: enrollment can ask for a sharp image, attendance for a
+ * small thumbnail. Immutable; the capture worker reads the current one once per frame.
+ *
+ * <p>{@link Stats} keeps encode time and size per distinct config, so screens can compare what a
+ * setting costs on the device.
+ */
+public class PreviewConfig {
+    public static final String JPEG = "jpeg";
+    public static final String PNG = "png";
+    /** lossless WebP; needs API 30, older devices fall back to WebP at quality 100 */
+    public static final String WEBP_LOSSLESS = "webp-lossless";
+    public static final int MIN_SIZE = 16;
+    public static final int MAX_SIZE = 1024;
+
+    public static final PreviewConfig DEFAULT =
+            new PreviewConfig(PreviewBenchmark.PREVIEW_SIZE, PreviewBenchmark.PREVIEW_SIZE, JPEG, 80);
+
+    public final int width;
+    public final int height;
+    public final String codec;
+    /** 0-100; PNG and lossless WebP ignore it */
+    public final int quality;
+
+    public PreviewConfig(int width, int height, String codec, int quality)
+    {
+        if (width < MIN_SIZE || width > MAX_SIZE || height < MIN_SIZE || height > MAX_SIZE)
+        {
+            throw new IllegalArgumentException("preview size must be " + MIN_SIZE + "-" + MAX_SIZE + ": " + width + "x" + height);
+        }
+        if (!JPEG.equals(codec) && !PNG.equals(codec) && !WEBP_LOSSLESS.equals(codec))
+        {
+            throw new IllegalArgumentException("unknown preview codec: " + codec);
+        }
+        if (quality < 0 || quality > 100)
+        {
+            throw new IllegalArgumentException("preview quality must be 0-100: " + quality);
+        }
+        this.width = width;
+        this.height = height;
+        this.codec = codec;
+        this.quality = quality;
+    }
+
+    public String extension()
+    {
+        return JPEG.equals(codec) ? "jpg" : PNG.equals(codec) ? "png" : "webp";
+    }
+
+    public String mimeType()
+    {
+        return "image/" + (JPEG.equals(codec) ? "jpeg" : extension());
+    }
+
+    /** Identifies the setting in {@link Stats}. */
+    public String key()
+    {
+        return codec + " " + width + "x" + height + (JPEG.equals(codec) ? " q" + quality : "");
+    }
+
+    @Override
+    public String toString() {
+        return key();
+    }
+
+    public static class Setting {
+        public String key;
+        public long frames;
+        public double avgEncodeMs;
+        public double maxEncodeMs;
+        public double avgBytes;
+    }
+
+    /** Encode time and output size per setting, in the order settings were first used. */
+    public static class Stats {
+        private static class Totals {
+            long frames;
+            long encodeNanos;
+            long maxEncodeNanos;
+            long bytes;
+        }
+
+        private final Map<String, Totals> totals = new LinkedHashMap<String, Totals>();
+
+        public synchronized void record(PreviewConfig config, long encodeNanos, long bytes)
+        {
+            Totals entry = totals.get(config.key());
+            if (null == entry)
+            {
+                entry = new Totals();
+                totals.put(config.key(), entry);
+            }
+            entry.frames++;
+            entry.encodeNanos += encodeNanos;
+            entry.maxEncodeNanos = Math.max(entry.maxEncodeNanos, encodeNanos);
+            entry.bytes += bytes;
+        }
+
+        public synchronized List<Setting> snapshot()
+        {
+            List<Setting> settings = new ArrayList<Setting>();
+            for (Map.Entry<String, Totals> entry : totals.entrySet()) {
+                Totals t = entry.getValue();
+                Setting setting = new Setting();
+                setting.key = entry.getKey();
+                setting.frames = t.frames;
+                setting.avgEncodeMs = t.encodeNanos / 1e6 / t.frames;
+                setting.maxEncodeMs = t.maxEncodeNanos / 1e6;
+                setting.avgBytes = (double) t.bytes / t.frames;
+                settings.add(setting);
+            }
+            return settings;
+        }
+    }
+}
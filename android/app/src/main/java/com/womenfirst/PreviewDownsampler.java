@@ -0,0 +1,126 @@
+package com.womenfirst;
+
+/**
+ * Shrinks a raw greyscale sensor frame straight to preview size by area averaging: every
+ * output pixel is the mean of the source pixels it covers. The old path rendered a full-size
+ * ARGB bitmap (4 bytes per source pixel) and then scaled it; this one reads the sensor's
+ * {@code byte[]} once and writes only the small image.
+ *
+ * <p>Output size keeps the frame's aspect ratio within {@code maxWidth} x {@code maxHeight},
+ * as {@code MainActivity.resizeBitmap} did. All buffers are reused while the frame size stays
+ * the same. Not thread-safe; the capture worker owns one instance.
+ */
+public class PreviewDownsampler {
+    private final int maxWidth;
+    private final int maxHeight;
+    private int sourceWidth = -1;
+    private int sourceHeight = -1;
+    private int width;
+    private int height;
+    private byte[] pixels = new byte[0];
+    /** first source column of output column i is columnStart[i], the last is columnStart[i + 1] - 1 */
+    private int[] columnStart = new int[0];
+    private int[] rowStart = new int[0];
+    private int[] sums = new int[0];
+
+    public PreviewDownsampler(int maxWidth, int maxHeight)
+    {
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public int getHeight()
+    {
+        return height;
+    }
+
+    /** Greyscale result of the last {@link #downsample}, row-major, {@code width * height} bytes. */
+    public byte[] getPixels()
+    {
+        return pixels;
+    }
+
+    public void downsample(byte[] image, int imageWidth, int imageHeight)
+    {
+        if (imageWidth != sourceWidth || imageHeight != sourceHeight)
+        {
+            resize(imageWidth, imageHeight);
+        }
+        int out = 0;
+        for (int y = 0; y < height; y++) {
+            int top = rowStart[y];
+            int bottom = rowStart[y + 1];
+            for (int x = 0; x < width; x++) {
+                sums[x] = 0;
+            }
+            for (int row = top; row < bottom; row++) {
+                int offset = row * imageWidth;
+                int column = columnStart[0];
+                for (int x = 0; x < width; x++) {
+                    int end = columnStart[x + 1];
+                    int sum = 0;
+                    for (; column < end; column++) {
+                        sum += image[offset + column] & 0xFF;
+                    }
+                    sums[x] += sum;
+                }
+            }
+            int rows = bottom - top;
+            for (int x = 0; x < width; x++) {
+                int area = rows * (columnStart[x + 1] - columnStart[x]);
+                pixels[out++] = (byte) ((sums[x] + area / 2) / area);
+            }
+        }
+    }
+
+    /** Expands the last result to opaque ARGB for {@code Bitmap.setPixels}; {@code argb} needs width * height entries. */
+    public void toArgb(int[] argb)
+    {
+        int count = width * height;
+        for (int i = 0; i < count; i++) {
+            int grey = pixels[i] & 0xFF;
+            argb[i] = 0xFF000000 | grey << 16 | grey << 8 | grey;
+        }
+    }
+
+    private void resize(int imageWidth, int imageHeight)
+    {
+        sourceWidth = imageWidth;
+        sourceHeight = imageHeight;
+        width = imageWidth;
+        height = imageHeight;
+        if (width > maxWidth || height > maxHeight)
+        {
+            float aspectRatio = (float) imageWidth / imageHeight;
+            if (width > height)
+            {
+                width = maxWidth;
+                height = Math.max(1, (int) (maxWidth / aspectRatio));
+            }
+            else
+            {
+                height = maxHeight;
+                width = Math.max(1, (int) (maxHeight * aspectRatio));
+            }
+        }
+        pixels = new byte[width * height];
+        sums = new int[width];
+        columnStart = bounds(imageWidth, width);
+        rowStart = bounds(imageHeight, height);
+    }
+
+    /** Splits {@code source} pixels into {@code target} spans of near-equal, non-zero length. */
+    private static int[] bounds(int source, int target)
+    {
+        int[] bounds = new int[target + 1];
+        for (int i = 0; i <= target; i++) {
+            bounds[i] = (int) ((long) i * source / target);
+        }
+        return bounds;
+    }
+}
@@ -0,0 +1,85 @@
+package com.womenfirst;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * Raw greyscale frame to a preview bitmap, without a full-size ARGB intermediate, and that
+ * bitmap to Base64 through a {@link Base64Sink}. The bitmap, pixel array and text buffer are
+ * reused; a miss is a frame that had to allocate a new one. After warm-up the per-frame
+ * allocations left are the result String and Bitmap.compress's own scratch buffer.
+ * Not thread-safe; the capture worker owns one instance.
+ */
+class PreviewRenderer {
+    private PreviewDownsampler downsampler = null;
+    private PreviewConfig sizedFor = null;
+    private final Base64Sink sink = new Base64Sink(PreviewBenchmark.DEFAULT_JPEG_BYTES);
+    private int[] argb = new int[0];
+    private Bitmap bitmap = null;
+    private volatile long bitmapMisses = 0;
+
+    long getBitmapMisses()
+    {
+        return bitmapMisses;
+    }
+
+    long getBufferMisses()
+    {
+        return sink.getGrowths();
+    }
+
+    String encodeBase64(Bitmap bitmap, PreviewConfig config)
+    {
+        sink.reset();
+        bitmap.compress(compressFormat(config), compressQuality(config), sink);
+        return sink.toString();
+    }
+
+    /** Size of the image behind the last {@link #encodeBase64}, before Base64. */
+    int getEncodedBytes()
+    {
+        return sink.byteCount();
+    }
+
+    Bitmap render(byte[] image, int width, int height, PreviewConfig config)
+    {
+        if (null == sizedFor || sizedFor.width != config.width || sizedFor.height != config.height)
+        {
+            downsampler = new PreviewDownsampler(config.width, config.height);
+        }
+        sizedFor = config;
+        downsampler.downsample(image, width, height);
+        int w = downsampler.getWidth();
+        int h = downsampler.getHeight();
+        if (null == bitmap || bitmap.getWidth() != w || bitmap.getHeight() != h)
+        {
+            bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            argb = new int[w * h];
+            bitmapMisses++;
+        }
+        downsampler.toArgb(argb);
+        bitmap.setPixels(argb, 0, w, 0, 0, w, h);
+        return bitmap;
+    }
+
+    @SuppressWarnings("deprecation")
+    static Bitmap.CompressFormat compressFormat(PreviewConfig config)
+    {
+        if (PreviewConfig.PNG.equals(config.codec))
+        {
+            return Bitmap.CompressFormat.PNG;
+        }
+        if (PreviewConfig.WEBP_LOSSLESS.equals(config.codec))
+        {
+            // WEBP_LOSSLESS exists from API 30 (R) on; before that plain WEBP at quality 100 is the closest
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+                    ? Bitmap.CompressFormat.WEBP_LOSSLESS : Bitmap.CompressFormat.WEBP;
+        }
+        return Bitmap.CompressFormat.JPEG;
+    }
+
+    static int compressQuality(PreviewConfig config)
+    {
+        return PreviewConfig.JPEG.equals(config.codec) ? config.quality : 100;
+    }
+}
@@ -0,0 +1,123 @@
+package com.womenfirst;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Splits the gallery across {@code shardCount} independent matchers and searches them
+ * concurrently on a fork-join pool; the best scores across shards win. Ids are placed by
+ * hash, so a pin always lives in the same shard.
+ *
+ * <p>Every shard needs its own gallery, which the ZKTeco SDK cannot provide (its gallery is
+ * one process-wide static), so on the device this is only useful with a shard count of 1
+ * (a pass-through). Matchers with per-instance galleries, such as
+ * {@link SimulatedTemplateMatcher}, shard for real.
+ */
+public class ShardedTemplateMatcher implements TemplateMatcher {
+    public interface ShardFactory {
+        TemplateMatcher create(int shard);
+    }
+
+    private final TemplateMatcher[] shards;
+    private final ForkJoinPool pool;
+
+    public ShardedTemplateMatcher(int shardCount, ShardFactory factory)
+    {
+        this(shardCount, factory, new ForkJoinPool(Math.max(1, Math.min(shardCount, Runtime.getRuntime().availableProcessors()))));
+    }
+
+    public ShardedTemplateMatcher(int shardCount, ShardFactory factory, ForkJoinPool pool)
+    {
+        if (shardCount < 1)
+        {
+            throw new IllegalArgumentException("shardCount must be at least 1");
+        }
+        shards = new TemplateMatcher[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = factory.create(i);
+        }
+        this.pool = pool;
+    }
+
+    public int getShardCount()
+    {
+        return shards.length;
+    }
+
+    private TemplateMatcher shardOf(String id)
+    {
+        return shards[(id.hashCode() & 0x7fffffff) % shards.length];
+    }
+
+    @Override
+    public int identify(final byte[] template, byte[] result, final int threshold, final int count)
+    {
+        if (shards.length == 1)
+        {
+            return shards[0].identify(template, result, threshold, count);
+        }
+        final int resultSize = result.length;
+        List<Future<byte[]>> searches = new ArrayList<Future<byte[]>>(shards.length);
+        for (final TemplateMatcher shard : shards) {
+            searches.add(pool.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    byte[] shardResult = new byte[resultSize];
+                    return shard.identify(template, shardResult, threshold, count) > 0 ? shardResult : null;
+                }
+            }));
+        }
+        CandidateList candidates = new CandidateList(count);
+        for (Future<byte[]> search : searches) {
+            try {
+                byte[] shardResult = search.get();
+                if (null != shardResult)
+                {
+                    candidates.parse(shardResult);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            } catch (ExecutionException e) {
+                return -1;
+            }
+        }
+        return candidates.write(result);
+    }
+
+    @Override
+    public int verify(byte[] template1, byte[] template2)
+    {
+        return shards[0].verify(template1, template2);
+    }
+
+    @Override
+    public int merge(byte[] template1, byte[] template2, byte[] template3, byte[] out)
+    {
+        return shards[0].merge(template1, template2, template3, out);
+    }
+
+    @Override
+    public int save(byte[] template, String id)
+    {
+        return shardOf(id).save(template, id);
+    }
+
+    @Override
+    public void del(String id)
+    {
+        shardOf(id).del(id);
+    }
+
+    @Override
+    public void clear()
+    {
+        for (TemplateMatcher shard : shards) {
+            shard.clear();
+        }
+    }
+}
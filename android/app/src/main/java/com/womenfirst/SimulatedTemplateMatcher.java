@@ -0,0 +1,87 @@
+package com.womenfirst;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Deterministic, pure-Java {@link TemplateMatcher} for benchmarks and load tests off the
+ * device. A "template" is any byte array; the score of two templates is the percentage of
+ * positions at which they hold the same byte, so a copy with k% of its bytes changed scores
+ * 100 - k against the original and unrelated random templates score close to 0. The cost of
+ * a comparison grows with template size the way a real matcher's does.
+ */
+public class SimulatedTemplateMatcher implements TemplateMatcher {
+    private final Map<String, byte[]> gallery = new LinkedHashMap<String, byte[]>();
+
+    public static int score(byte[] template1, byte[] template2)
+    {
+        int length = Math.min(template1.length, template2.length);
+        if (length == 0)
+        {
+            return 0;
+        }
+        int same = 0;
+        for (int i = 0; i < length; i++) {
+            if (template1[i] == template2[i])
+            {
+                same++;
+            }
+        }
+        return same * 100 / length;
+    }
+
+    @Override
+    public synchronized int identify(byte[] template, byte[] result, int threshold, int count)
+    {
+        CandidateList candidates = new CandidateList(count);
+        for (Map.Entry<String, byte[]> entry : gallery.entrySet()) {
+            int score = score(template, entry.getValue());
+            if (score >= threshold)
+            {
+                candidates.offer(entry.getKey(), score);
+            }
+        }
+        return candidates.write(result);
+    }
+
+    @Override
+    public int verify(byte[] template1, byte[] template2)
+    {
+        return score(template1, template2);
+    }
+
+    /** Byte-wise majority vote of the three samples. */
+    @Override
+    public int merge(byte[] template1, byte[] template2, byte[] template3, byte[] out)
+    {
+        int length = Math.min(out.length, Math.min(template1.length, Math.min(template2.length, template3.length)));
+        for (int i = 0; i < length; i++) {
+            out[i] = template2[i] == template3[i] ? template2[i] : template1[i];
+        }
+        return length;
+    }
+
+    @Override
+    public synchronized int save(byte[] template, String id)
+    {
+        gallery.put(id, template.clone());
+        return 0;
+    }
+
+    @Override
+    public synchronized void del(String id)
+    {
+        gallery.remove(id);
+    }
+
+    @Override
+    public synchronized void clear()
+    {
+        gallery.clear();
+    }
+
+    public synchronized int size()
+    {
+        return gallery.size();
+    }
+}
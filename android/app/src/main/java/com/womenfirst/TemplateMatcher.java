@@ -0,0 +1,34 @@
+package com.womenfirst;
+
+/**
+ * The matching operations enrollment and identification need, shaped like the static
+ * {@code ZKFingerService} API so the production adapter is a straight pass-through.
+ * {@link ZKFingerServiceMatcher} is the production implementation and
+ * {@link SimulatedTemplateMatcher} a deterministic pure-Java one for running the same code
+ * paths on a plain JVM.
+ */
+public interface TemplateMatcher {
+
+    /**
+     * 1:N search of the in-memory gallery.
+     *
+     * @param result    receives the candidates as "id\tscore" entries separated by '\n'
+     * @param threshold minimum score for a candidate
+     * @param count     maximum number of candidates
+     * @return the number of candidates found, or a value &lt;= 0 on no match or error
+     */
+    int identify(byte[] template, byte[] result, int threshold, int count);
+
+    /** 1:1 comparison; returns the match score, &lt;= 0 when the templates do not match. */
+    int verify(byte[] template1, byte[] template2);
+
+    /** Merges three samples into {@code out}; returns the merged template's length, &lt;= 0 on failure. */
+    int merge(byte[] template1, byte[] template2, byte[] template3, byte[] out);
+
+    /** Adds a template to the in-memory gallery; returns 0 on success. */
+    int save(byte[] template, String id);
+
+    void del(String id);
+
+    void clear();
+}
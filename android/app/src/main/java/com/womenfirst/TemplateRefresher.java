@@ -0,0 +1,147 @@
+package com.womenfirst;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps enrolled templates in step with slowly changing fingers. A capture that identifies
+ * with at least {@code minScore} is held as a fresh sample; the next such capture of the same
+ * user is merged with it and the enrolled template into a replacement, off the capture thread.
+ * The replacement is written to the store (which logs it) and handed to the {@link Listener}
+ * to swap into the in-memory gallery. A user is refreshed at most once per {@code minIntervalMs}.
+ */
+public class TemplateRefresher {
+    public static final int DEFAULT_MIN_SCORE = 90;
+    public static final long DEFAULT_MIN_INTERVAL_MS = 24L * 60 * 60 * 1000;
+    private static final int MAX_PENDING = 256;
+
+    /** Persists a refreshed template together with its audit record. */
+    public interface Store {
+        boolean refreshTemplate(String pin, byte[] template, int length, int score);
+    }
+
+    public interface Listener {
+        void onRefreshed(String pin, byte[] template, int length);
+    }
+
+    private final TemplateMatcher matcher;
+    private final FingerprintEngine.TemplateLookup lookup;
+    private final Store store;
+    private final Listener listener;
+    private final int minScore;
+    private final long minIntervalMs;
+    private final Map<String, Long> lastRefresh = new HashMap<String, Long>();
+    private final LinkedHashMap<String, byte[]> pending = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_PENDING;
+        }
+    };
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "TemplateRefresher");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final AtomicLong refreshed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    public TemplateRefresher(TemplateMatcher matcher, FingerprintEngine.TemplateLookup lookup, Store store, Listener listener)
+    {
+        this(matcher, lookup, store, listener, DEFAULT_MIN_SCORE, DEFAULT_MIN_INTERVAL_MS);
+    }
+
+    public TemplateRefresher(TemplateMatcher matcher, FingerprintEngine.TemplateLookup lookup, Store store, Listener listener,
+                             int minScore, long minIntervalMs)
+    {
+        this.matcher = matcher;
+        this.lookup = lookup;
+        this.store = store;
+        this.listener = listener;
+        this.minScore = minScore;
+        this.minIntervalMs = minIntervalMs;
+    }
+
+    /**
+     * Called after every successful identify.
+     *
+     * @return true if a refresh of {@code pin} was queued
+     */
+    public boolean offer(String pin, byte[] capture, int score)
+    {
+        if (score < minScore)
+        {
+            return false;
+        }
+        final byte[] first;
+        final byte[] second = Arrays.copyOf(capture, FingerprintEngine.TEMPLATE_SIZE);
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            Long last = lastRefresh.get(pin);
+            if (null != last && now - last < minIntervalMs)
+            {
+                return false;
+            }
+            first = pending.remove(pin);
+            if (null == first)
+            {
+                pending.put(pin, second);
+                return false;
+            }
+            lastRefresh.put(pin, now);
+        }
+        final String refreshPin = pin;
+        final int refreshScore = score;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                refresh(refreshPin, first, second, refreshScore);
+            }
+        });
+        return true;
+    }
+
+    private void refresh(String pin, byte[] first, byte[] second, int score)
+    {
+        byte[] enrolled = lookup.getTemplate(pin);
+        if (null == enrolled)
+        {
+            return;
+        }
+        enrolled = Arrays.copyOf(enrolled, FingerprintEngine.TEMPLATE_SIZE);
+        byte[] merged = new byte[FingerprintEngine.TEMPLATE_SIZE];
+        int length = matcher.merge(enrolled, first, second, merged);
+        // the replacement must still be this user's finger, by both old and new evidence
+        if (length <= 0 || matcher.verify(merged, enrolled) < FingerprintEngine.IDENTIFY_THRESHOLD
+                || matcher.verify(merged, second) < minScore)
+        {
+            rejected.incrementAndGet();
+            return;
+        }
+        if (!store.refreshTemplate(pin, merged, length, score))
+        {
+            rejected.incrementAndGet();
+            return;
+        }
+        refreshed.incrementAndGet();
+        listener.onRefreshed(pin, merged, length);
+    }
+
+    public long getRefreshed()
+    {
+        return refreshed.get();
+    }
+
+    public long getRejected()
+    {
+        return rejected.get();
+    }
+}
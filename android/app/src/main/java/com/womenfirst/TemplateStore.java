@@ -0,0 +1,41 @@
+package com.womenfirst;
+
+/**
+ * Persistent pin -> template gallery. {@link DBManager} is the SQLite implementation and
+ * {@link MappedTemplateStore} the memory-mapped flat-file one.
+ */
+public interface TemplateStore {
+
+    interface TemplateVisitor {
+        /**
+         * @param project partition the user was enrolled in, {@link DBManager#NO_PROJECT} if none
+         * @param feature buffer holding the template in its first {@code length} bytes; it is
+         *                reused for the next row, so copy it to keep it
+         * @param crc     CRC32 of the template as recorded when it was written
+         *                (see {@link com.womenfirst.util.TemplateUtils#crc32})
+         * @return false to stop the walk
+         */
+        boolean visit(String pin, String project, byte[] feature, int length, int crc);
+    }
+
+    boolean opendb(String fileName);
+
+    void close();
+
+    boolean isUserExited(String pin);
+
+    boolean insertUser(String pin, byte[] feature, int length);
+
+    boolean insertUser(String pin, String project, byte[] feature, int length);
+
+    boolean modifyUser(String pin, byte[] feature, int length);
+
+    boolean deleteUser(String pin);
+
+    boolean clear();
+
+    int getCount();
+
+    /** @return the number of templates visited */
+    int forEachTemplate(int pageSize, TemplateVisitor visitor);
+}
@@ -0,0 +1,115 @@
+package com.womenfirst;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the SQLite ({@link DBManager}) and memory-mapped ({@link MappedTemplateStore})
+ * backends on bulk load, cold open and a full gallery walk. Runs on the device, against
+ * scratch files in {@code dir}, with synthetic templates of realistic size.
+ */
+public class TemplateStoreBenchmark {
+    private static final String TAG = "TemplateStoreBenchmark";
+    private static final int LOAD_CHUNK = 1000;
+
+    public static final int[] DEFAULT_SIZES = new int[] { 1000, 10000, 100000 };
+
+    public static class Result {
+        public String backend;
+        public int users;
+        public long loadMs;
+        public long openMs;
+        public long walkMs;
+        public long fileBytes;
+
+        @Override
+        public String toString() {
+            return backend + " users=" + users + " load=" + loadMs + "ms open=" + openMs
+                    + "ms walk=" + walkMs + "ms size=" + fileBytes / 1024 + "KB";
+        }
+    }
+
+    public static List<Result> run(File dir, int[] sizes)
+    {
+        List<Result> results = new ArrayList<Result>();
+        for (int users : sizes) {
+            File sqlite = new File(dir, "bench_templates.db");
+            File mappedFile = new File(dir, "bench_templates.dat");
+            results.add(measure("sqlite", new DBManager(), sqlite, users));
+            results.add(measure("mapped", new MappedTemplateStore(), mappedFile, users));
+        }
+        return results;
+    }
+
+    private static Result measure(String backend, TemplateStore store, File file, int users)
+    {
+        deleteWithJournal(file);
+        Result result = new Result();
+        result.backend = backend;
+        result.users = users;
+
+        store.opendb(file.getAbsolutePath());
+        long start = System.nanoTime();
+        load(store, users);
+        result.loadMs = (System.nanoTime() - start) / 1000000;
+        store.close();
+
+        start = System.nanoTime();
+        store.opendb(file.getAbsolutePath());
+        store.getCount();
+        result.openMs = (System.nanoTime() - start) / 1000000;
+
+        final long[] sink = new long[1];
+        start = System.nanoTime();
+        store.forEachTemplate(DBManager.DEFAULT_PAGE_SIZE, new TemplateStore.TemplateVisitor() {
+            @Override
+            public boolean visit(String pin, String project, byte[] feature, int length, int crc) {
+                // stand-in for ZKFingerService.save: touch every byte once
+                for (int i = 0; i < length; i++) {
+                    sink[0] += feature[i];
+                }
+                return true;
+            }
+        });
+        result.walkMs = (System.nanoTime() - start) / 1000000;
+        store.close();
+        result.fileBytes = file.length();
+        deleteWithJournal(file);
+        Log.i(TAG, result.toString() + " (" + sink[0] + ")");
+        return result;
+    }
+
+    private static void load(TemplateStore store, int users)
+    {
+        Random random = new Random(users);
+        List<DBManager.UserTemplate> chunk = new ArrayList<DBManager.UserTemplate>(LOAD_CHUNK);
+        for (int i = 0; i < users; i++) {
+            int length = 1200 + random.nextInt(DBManager.TEMPLATE_BUFFER_SIZE - 1200);
+            byte[] feature = new byte[length];
+            random.nextBytes(feature);
+            chunk.add(new DBManager.UserTemplate("bench" + i, feature, length));
+            if (chunk.size() == LOAD_CHUNK || i == users - 1) {
+                if (store instanceof DBManager) {
+                    ((DBManager) store).insertUsers(chunk);
+                } else {
+                    for (DBManager.UserTemplate user : chunk) {
+                        store.insertUser(user.pin, user.feature, user.length);
+                    }
+                }
+                chunk.clear();
+            }
+        }
+    }
+
+    private static void deleteWithJournal(File file)
+    {
+        file.delete();
+        new File(file.getPath() + "-journal").delete();
+        new File(file.getPath() + "-wal").delete();
+        new File(file.getPath() + "-shm").delete();
+    }
+}
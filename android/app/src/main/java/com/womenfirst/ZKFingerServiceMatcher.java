@@ -0,0 +1,55 @@
+package com.womenfirst;
+
+import com.zkteco.android.biometric.module.fingerprintreader.ZKFingerService;
+
+/**
+ * {@link TemplateMatcher} over the ZKTeco SDK's process-wide, non-thread-safe gallery. Every
+ * call, verify and merge included, holds one process-wide lock, so the SDK is only ever entered
+ * by one thread at a time: the capture thread's identify, the gallery loader's save and the
+ * duplicate audit's verifies take turns instead of running into each other.
+ */
+public class ZKFingerServiceMatcher implements TemplateMatcher {
+    private static final Object SDK_LOCK = new Object();
+
+    @Override
+    public int identify(byte[] template, byte[] result, int threshold, int count) {
+        synchronized (SDK_LOCK) {
+            return ZKFingerService.identify(template, result, threshold, count);
+        }
+    }
+
+    @Override
+    public int verify(byte[] template1, byte[] template2) {
+        synchronized (SDK_LOCK) {
+            return ZKFingerService.verify(template1, template2);
+        }
+    }
+
+    @Override
+    public int merge(byte[] template1, byte[] template2, byte[] template3, byte[] out) {
+        synchronized (SDK_LOCK) {
+            return ZKFingerService.merge(template1, template2, template3, out);
+        }
+    }
+
+    @Override
+    public int save(byte[] template, String id) {
+        synchronized (SDK_LOCK) {
+            return ZKFingerService.save(template, id);
+        }
+    }
+
+    @Override
+    public void del(String id) {
+        synchronized (SDK_LOCK) {
+            ZKFingerService.del(id);
+        }
+    }
+
+    @Override
+    public void clear() {
+        synchronized (SDK_LOCK) {
+            ZKFingerService.clear();
+        }
+    }
+}
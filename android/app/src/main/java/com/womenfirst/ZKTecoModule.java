@@ -49,6 +49,7 @@ import com.facebook.react.bridge.ReactApplicationContext;
 import android.os.Build;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -62,7 +63,9 @@ import com.facebook.react.modules.core.PermissionListener;
 import com.facebook.react.bridge.ActivityEventListener;
 import com.facebook.react.bridge.BaseActivityEventListener;
 import com.facebook.react.modules.core.DeviceEventManagerModule;
+import com.facebook.react.bridge.ReadableMap;
 import com.facebook.react.bridge.WritableMap;
+import com.facebook.react.bridge.WritableArray;
 import com.facebook.react.bridge.Arguments;
 
 import com.facebook.react.bridge.UiThreadUtil;
@@ -84,13 +87,9 @@ public class ZKTecoModule extends ReactContextBaseJavaModule {
     private boolean bStarted = false;
     private int deviceIndex = 0;
     private boolean isReseted = false;
-    private String strUid = null;
-    private final static int ENROLL_COUNT =3;
-    private int enroll_index = 0;
-    private byte[][] regtemparray = new byte[3][2048];  //register template buffer array
-    private boolean bRegister = false;
     private DBManager dbManager = new DBManager();
     private ReactApplicationContext reactContext;
+    private final EventSubscribers subscribers = new EventSubscribers();
       private static final int ZKTECO_VID =   0x1b55;
     private static final int LIVE20R_PID =   0x0120;
     private static final int LIVE10R_PID =   0x0124;
@@ -423,15 +422,26 @@ public class ZKTecoModule extends ReactContextBaseJavaModule {
                 return mediaFile;
             }
 
+            // called by NativeEventEmitter on every subscription
             @ReactMethod
             public void addListener(String eventName) {
-                // Set up any upstream listeners or background tasks as necessary
+                subscribers.add(eventName);
             }
 
-            // Add this method to support removeListeners in React Native
+            // called by NativeEventEmitter on removal, with a count but no event name
             @ReactMethod
             public void removeListeners(Integer count) {
-                // Remove upstream listeners, stop unnecessary background tasks
+                subscribers.removeAny(count);
+            }
+
+            /** Names the event a subscription was removed from; see src/utils/ZKTecoEvents.js. */
+            @ReactMethod
+            public void releaseListener(String eventName) {
+                subscribers.release(eventName);
+            }
+
+            public boolean hasListeners(String eventName) {
+                return subscribers.has(eventName);
             }
 
 
@@ -588,7 +598,7 @@ public class ZKTecoModule extends ReactContextBaseJavaModule {
 
                  MainActivity activity = (MainActivity) getCurrentActivity();
                 if (activity != null) {
-                    if (bRegister) {
+                    if (activity.getEngine().isEnrolling()) {
                        activity.doRegister(fpTemplate);
                     } else {
                         activity.doIdentify(fpTemplate);
@@ -740,6 +750,413 @@ public class ZKTecoModule extends ReactContextBaseJavaModule {
 
          
 
+        @ReactMethod
+        public void getIdentifyStats(Promise promise) {
+            MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            HotUserCache hotUsers = activity.getEngine().getHotUsers();
+            WritableMap map = Arguments.createMap();
+            map.putDouble("hotHits", hotUsers.getHits());
+            map.putDouble("hotMisses", hotUsers.getMisses());
+            map.putInt("hotSize", hotUsers.size());
+            map.putInt("hotCapacity", hotUsers.getCapacity());
+            IdentifyMetrics metrics = activity.getEngine().getMetrics();
+            map.putDouble("people", metrics.getPeople());
+            map.putDouble("firstPressRate", metrics.getFirstPressRate());
+            map.putDouble("averagePresses", metrics.getAveragePresses());
+            map.putDouble("abandoned", metrics.getAbandoned());
+            TemplateRefresher refresher = activity.getEngine().getTemplateRefresher();
+            if (null != refresher) {
+                map.putDouble("templatesRefreshed", refresher.getRefreshed());
+                map.putDouble("refreshesRejected", refresher.getRejected());
+            }
+            promise.resolve(map);
+        }
+
+        /**
+         * Matching samples the next enrollments require, between 3 and
+         * {@link EnrollmentSession#MAX_SAMPLES}; resolves the count in effect. The SDK merges
+         * three templates, so a count above 3 only requires more presses to agree first.
+         */
+        @ReactMethod
+        public void setEnrollSamples(int samples, Promise promise) {
+            MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            activity.getEngine().setEnrollSamples(samples);
+            promise.resolve(activity.getEngine().getEnrollSamples());
+        }
+
+        /**
+         * "base64" (default) sends previews as imageBase64; "file" sends captureId, path, uri,
+         * width, height and quality of a cache file instead. Resolves the previous mode.
+         */
+        @ReactMethod
+        public void setPreviewMode(String mode, Promise promise) {
+            MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            try {
+                promise.resolve(activity.setPreviewMode(mode));
+            } catch (IllegalArgumentException e) {
+                promise.reject("INVALID_MODE", e.getMessage());
+            }
+        }
+
+        /**
+         * Preview size and encoding from the next frame on, e.g. {width: 300, height: 400,
+         * codec: 'png'} for enrollment or {width: 64, height: 64, codec: 'jpeg', quality: 50}
+         * at a gate. codec is 'jpeg', 'png' or 'webp-lossless'; keys left out keep their
+         * current value. Resolves the config in effect, with encodedAs showing the WebP
+         * fallback below Android 11.
+         */
+        @ReactMethod
+        public void setPreviewConfig(ReadableMap options, Promise promise) {
+            MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            PreviewConfig current = activity.getPreviewConfig();
+            PreviewConfig config;
+            try {
+                config = new PreviewConfig(
+                        options.hasKey("width") ? options.getInt("width") : current.width,
+                        options.hasKey("height") ? options.getInt("height") : current.height,
+                        options.hasKey("codec") ? options.getString("codec") : current.codec,
+                        options.hasKey("quality") ? options.getInt("quality") : current.quality);
+            } catch (IllegalArgumentException e) {
+                promise.reject("INVALID_CONFIG", e.getMessage());
+                return;
+            }
+            activity.setPreviewConfig(config);
+            WritableMap map = Arguments.createMap();
+            map.putInt("width", config.width);
+            map.putInt("height", config.height);
+            map.putString("codec", config.codec);
+            map.putInt("quality", config.quality);
+            map.putString("encodedAs", MainActivity.encodedAs(config));
+            promise.resolve(map);
+        }
+
+        /** Frames, average and max encode time, and average size per preview setting used so far. */
+        @ReactMethod
+        public void getPreviewStats(Promise promise) {
+            MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            WritableArray array = Arguments.createArray();
+            for (PreviewConfig.Setting setting : activity.getPreviewStats()) {
+                WritableMap map = Arguments.createMap();
+                map.putString("setting", setting.key);
+                map.putDouble("frames", setting.frames);
+                map.putDouble("avgEncodeMs", setting.avgEncodeMs);
+                map.putDouble("maxEncodeMs", setting.maxEncodeMs);
+                map.putDouble("avgBytes", setting.avgBytes);
+                array.pushMap(map);
+            }
+            promise.resolve(array);
+        }
+
+        /**
+         * Endpoint for uploadCapture. It must speak the chunked resume protocol, so the
+         * production store-fp-image endpoint does not qualify; there is no default.
+         */
+        @ReactMethod
+        public void setUploadEndpoint(String endpoint, Promise promise) {
+            MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            try {
+                activity.setUploadEndpoint(endpoint);
+                promise.resolve(endpoint);
+            } catch (IllegalArgumentException e) {
+                promise.reject("INVALID_ENDPOINT", e.getMessage());
+            }
+        }
+
+        /**
+         * Uploads a capture at full resolution straight from native, in chunks with resume:
+         * {captureId (from ImageReceivedEvent, default newest), format: 'png' | 'raw',
+         * fields: {cnic, centralized_userid, project_name, ...}}. Emits FPUploadProgress
+         * {uploadId, sent, total}; resolves {uploadId, bytes, chunks, retries, status, response}.
+         */
+        @ReactMethod
+        public void uploadCapture(final ReadableMap options, final Promise promise) {
+            final MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            if (null == activity.getUploadEndpoint()) {
+                promise.reject("NO_UPLOAD_ENDPOINT", "call setUploadEndpoint first");
+                return;
+            }
+            final long captureId = options.hasKey("captureId") ? (long) options.getDouble("captureId") : 0;
+            final String format = options.hasKey("format") ? options.getString("format") : "png";
+            final Map<String, String> fields = new HashMap<String, String>();
+            if (options.hasKey("fields")) {
+                for (Map.Entry<String, Object> field : options.getMap("fields").toHashMap().entrySet()) {
+                    fields.put(field.getKey(), fieldValue(field.getValue()));
+                }
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ChunkedUploader.Result result = activity.uploadCapture(captureId, format, fields, new ChunkedUploader.Listener() {
+                            @Override
+                            public void onProgress(String uploadId, long sent, long total) {
+                                WritableMap params = Arguments.createMap();
+                                params.putString("uploadId", uploadId);
+                                params.putDouble("sent", sent);
+                                params.putDouble("total", total);
+                                activity.sendEvent("FPUploadProgress", params);
+                            }
+                        });
+                        WritableMap map = Arguments.createMap();
+                        map.putString("uploadId", result.uploadId);
+                        map.putDouble("bytes", result.bytes);
+                        map.putInt("chunks", result.chunks);
+                        map.putInt("retries", result.retries);
+                        map.putInt("status", result.status);
+                        map.putString("response", result.response);
+                        map.putDouble("elapsedMs", result.elapsedMs);
+                        promise.resolve(map);
+                    } catch (IllegalStateException e) {
+                        promise.reject("CAPTURE_GONE", e.getMessage());
+                    } catch (IllegalArgumentException e) {
+                        promise.reject("INVALID_FORMAT", e.getMessage());
+                    } catch (ChunkedUploader.UploadException e) {
+                        promise.reject("UPLOAD_FAILED", e.getMessage());
+                    } catch (Exception e) {
+                        Log.e(TAG, "capture upload failed", e);
+                        promise.reject("UPLOAD_ERROR", e.getMessage());
+                    }
+                }
+            }, "FPUpload").start();
+        }
+
+        // JS numbers arrive as doubles; send whole ones without ".0"
+        private static String fieldValue(Object value) {
+            if (value instanceof Double && ((Double) value) == Math.rint((Double) value)) {
+                return String.valueOf(((Double) value).longValue());
+            }
+            return String.valueOf(value);
+        }
+
+        /** Scopes identification (and new enrollments) to one project; pass "" for everyone. */
+        @ReactMethod
+        public void setProjectScope(String projectName, Promise promise) {
+            MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            activity.getEngine().setScope(projectName);
+            promise.resolve(projectName);
+        }
+
+        /**
+         * Preview pipeline counters: frames dropped because a newer one arrived, frames skipped
+         * because nothing listened to ImageReceivedEvent, and hand-off latency.
+         */
+        @ReactMethod
+        public void getCaptureStats(Promise promise) {
+            MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            CaptureProcessor.Stats stats = activity.getCaptureProcessor().getStats();
+            WritableMap map = Arguments.createMap();
+            map.putDouble("submitted", stats.submitted);
+            map.putDouble("processed", stats.processed);
+            map.putDouble("dropped", stats.dropped);
+            map.putDouble("skipped", stats.skipped);
+            map.putInt("previewListeners", subscribers.count("ImageReceivedEvent"));
+            long[] misses = activity.getPreviewPoolMisses();
+            map.putDouble("bitmapPoolMisses", misses[0]);
+            map.putDouble("bufferPoolMisses", misses[1]);
+            map.putDouble("avgQueueMs", stats.avgQueueMs);
+            map.putDouble("maxQueueMs", stats.maxQueueMs);
+            map.putDouble("avgProcessMs", stats.avgProcessMs);
+            promise.resolve(map);
+        }
+
+        /**
+         * Starts or resumes the duplicate audit; resolves false if one is already running or the
+         * gallery has not finished loading.
+         */
+        @ReactMethod
+        public void startDuplicateAudit(boolean restart, Promise promise) {
+            MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            promise.resolve(activity.startDuplicateAudit(restart));
+        }
+
+        @ReactMethod
+        public void cancelDuplicateAudit(Promise promise) {
+            MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            activity.cancelDuplicateAudit();
+            promise.resolve(true);
+        }
+
+        /** Suspected duplicate pairs of the latest audit run, highest score first. */
+        @ReactMethod
+        public void getDuplicateAuditPairs(final int limit, final Promise promise) {
+            final MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    DBManager db = activity.getDBManager();
+                    DBManager.AuditRun run = db.getLastAuditRun();
+                    WritableMap map = Arguments.createMap();
+                    WritableArray array = Arguments.createArray();
+                    if (null != run) {
+                        map.putDouble("run", run.run);
+                        map.putBoolean("finished", run.isFinished());
+                        for (DBManager.DuplicatePair pair : db.getAuditPairs(run.run, limit)) {
+                            WritableMap item = Arguments.createMap();
+                            item.putString("pinA", pair.pinA);
+                            item.putString("pinB", pair.pinB);
+                            item.putInt("score", pair.score);
+                            array.pushMap(item);
+                        }
+                    }
+                    map.putArray("pairs", array);
+                    promise.resolve(map);
+                }
+            }, "DuplicateAuditPairs").start();
+        }
+
+        @ReactMethod
+        public void benchmarkTemplateStores(final Promise promise) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        List<TemplateStoreBenchmark.Result> results =
+                                TemplateStoreBenchmark.run(reactContext.getCacheDir(), TemplateStoreBenchmark.DEFAULT_SIZES);
+                        WritableArray array = Arguments.createArray();
+                        for (TemplateStoreBenchmark.Result result : results) {
+                            WritableMap map = Arguments.createMap();
+                            map.putString("backend", result.backend);
+                            map.putInt("users", result.users);
+                            map.putDouble("loadMs", result.loadMs);
+                            map.putDouble("openMs", result.openMs);
+                            map.putDouble("walkMs", result.walkMs);
+                            map.putDouble("fileBytes", result.fileBytes);
+                            array.pushMap(map);
+                        }
+                        promise.resolve(array);
+                    } catch (Exception e) {
+                        Log.e(TAG, "template store benchmark failed", e);
+                        promise.reject("BENCHMARK_ERROR", e.getMessage());
+                    }
+                }
+            }, "TemplateStoreBenchmark").start();
+        }
+
+        @ReactMethod
+        public void benchmarkIdentify(final Promise promise) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        promise.resolve(toWritableArray(MatcherBenchmark.identifyLatency(
+                                MatcherBenchmark.DEFAULT_GALLERY_SIZES, MatcherBenchmark.defaultShardCounts())));
+                    } catch (Exception e) {
+                        Log.e(TAG, "identify benchmark failed", e);
+                        promise.reject("BENCHMARK_ERROR", e.getMessage());
+                    }
+                }
+            }, "MatcherBenchmark").start();
+        }
+
+        @ReactMethod
+        public void benchmarkEnrollment(final Promise promise) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        promise.resolve(toWritableArray(MatcherBenchmark.enrollmentLatency(MatcherBenchmark.DEFAULT_GALLERY_SIZES)));
+                    } catch (Exception e) {
+                        Log.e(TAG, "enrollment benchmark failed", e);
+                        promise.reject("BENCHMARK_ERROR", e.getMessage());
+                    }
+                }
+            }, "MatcherBenchmark").start();
+        }
+
+        @ReactMethod
+        public void benchmarkPreview(final Promise promise) {
+            final MainActivity activity = (MainActivity) getCurrentActivity();
+            if (activity == null) {
+                promise.reject("Activity is null");
+                return;
+            }
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        WritableArray array = Arguments.createArray();
+                        for (PreviewBenchmark.Result result : activity.benchmarkPreview()) {
+                            WritableMap map = Arguments.createMap();
+                            map.putString("name", result.name);
+                            map.putInt("width", result.width);
+                            map.putInt("height", result.height);
+                            map.putDouble("avgMs", result.avgMs);
+                            map.putDouble("p95Ms", result.p95Ms);
+                            map.putDouble("allocatedBytes", result.allocatedBytes);
+                            array.pushMap(map);
+                        }
+                        promise.resolve(array);
+                    } catch (Exception e) {
+                        Log.e(TAG, "preview benchmark failed", e);
+                        promise.reject("BENCHMARK_ERROR", e.getMessage());
+                    }
+                }
+            }, "PreviewBenchmark").start();
+        }
+
+        private WritableArray toWritableArray(List<MatcherBenchmark.Result> results) {
+            WritableArray array = Arguments.createArray();
+            for (MatcherBenchmark.Result result : results) {
+                WritableMap map = Arguments.createMap();
+                map.putString("name", result.name);
+                map.putInt("gallerySize", result.gallerySize);
+                map.putInt("shards", result.shards);
+                map.putInt("cores", result.cores);
+                map.putDouble("avgMs", result.avgMs);
+                map.putDouble("p95Ms", result.p95Ms);
+                array.pushMap(map);
+            }
+            return array;
+        }
+
         @ReactMethod
         private ZKUSBManagerListener zkusbManagerListener = new ZKUSBManagerListener() {
             //    @Override
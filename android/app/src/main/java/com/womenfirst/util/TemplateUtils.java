@@ -0,0 +1,13 @@
+package com.womenfirst.util;
+
+import java.util.zip.CRC32;
+
+public class TemplateUtils {
+
+    /** CRC32 of the first {@code length} bytes of a template, as stored next to it. */
+    public static int crc32(byte[] feature, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(feature, 0, length);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,148 @@
+package com.womenfirst;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Runs {@link ChunkedUploader} against a local stub server. */
+public class ChunkedUploaderTest {
+    private static final int CHUNK_SIZE = 1024;
+
+    private HttpServer server;
+    private String endpoint;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    @Before
+    public void startServer() throws IOException
+    {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.start();
+        endpoint = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer()
+    {
+        server.stop(0);
+    }
+
+    @Test(timeout = 10000)
+    public void serverStuckOnOneRangeFailsAfterMaxRetries() throws Exception
+    {
+        server.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                requests.incrementAndGet();
+                readBody(exchange);
+                exchange.getResponseHeaders().set("Range", "bytes=0-9");
+                exchange.sendResponseHeaders(308, -1);
+                exchange.close();
+            }
+        });
+        ChunkedUploader uploader = new ChunkedUploader(endpoint + "/upload", CHUNK_SIZE, 3);
+        try {
+            uploader.upload("stuck", new byte[4 * CHUNK_SIZE], "application/octet-stream", null, null);
+            fail("upload to a stuck server returned");
+        } catch (ChunkedUploader.UploadException e) {
+            assertEquals(308, e.status);
+        }
+        // the first 308 moves the server from nothing to 10 bytes; then 3 retries, then give up
+        assertTrue("requests: " + requests.get(), requests.get() <= 5);
+    }
+
+    @Test
+    public void emptyPayloadIsRejected() throws Exception
+    {
+        ChunkedUploader uploader = new ChunkedUploader(endpoint + "/upload", CHUNK_SIZE, 3);
+        try {
+            uploader.upload("empty", new byte[0], "application/octet-stream", null, null);
+            fail("empty payload accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(0, requests.get());
+    }
+
+    @Test(timeout = 20000)
+    public void resumesAfterDroppedConnectionAndServerError() throws Exception
+    {
+        final byte[] data = new byte[10 * CHUNK_SIZE + 123];
+        new Random(25).nextBytes(data);
+        final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        server.createContext("/upload", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                int request = requests.incrementAndGet();
+                byte[] body = readBody(exchange);
+                String range = exchange.getRequestHeaders().getFirst("Content-Range");
+                if (body.length > 0 && range.startsWith("bytes " + stored.size() + "-"))
+                {
+                    stored.write(body, 0, body.length);
+                }
+                if (3 == request)
+                {
+                    exchange.close(); // chunk kept, response lost
+                    return;
+                }
+                if (6 == request)
+                {
+                    exchange.sendResponseHeaders(503, -1);
+                    exchange.close();
+                    return;
+                }
+                if (stored.size() == data.length)
+                {
+                    exchange.sendResponseHeaders(201, -1);
+                }
+                else
+                {
+                    exchange.getResponseHeaders().set("Range", "bytes=0-" + (stored.size() - 1));
+                    exchange.sendResponseHeaders(308, -1);
+                }
+                exchange.close();
+            }
+        });
+        ChunkedUploader uploader = new ChunkedUploader(endpoint + "/upload", CHUNK_SIZE, 3);
+        ChunkedUploader.Result result = uploader.upload("resume", data, "application/octet-stream", null, null);
+        assertEquals(201, result.status);
+        assertEquals(2, result.retries);
+        assertArrayEquals(data, stored.toByteArray());
+    }
+
+    @Test
+    public void parseRangeCountsBytesReceived()
+    {
+        assertEquals(10, ChunkedUploader.parseRange("bytes=0-9"));
+        assertEquals(0, ChunkedUploader.parseRange(null));
+        assertEquals(0, ChunkedUploader.parseRange("bytes=5-9"));
+        assertEquals(0, ChunkedUploader.parseRange("bytes=0-x"));
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException
+    {
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            body.write(buffer, 0, n);
+        }
+        return body.toByteArray();
+    }
+}
@@ -0,0 +1,100 @@
+package com.womenfirst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Drives {@link EnrollmentSession} with {@link SimulatedTemplateMatcher} samples. */
+public class EnrollmentSessionTest {
+    private final Random random = new Random(10);
+    private int merges = 0;
+    private final SimulatedTemplateMatcher matcher = new SimulatedTemplateMatcher() {
+        @Override
+        public int merge(byte[] template1, byte[] template2, byte[] template3, byte[] out) {
+            merges++;
+            return super.merge(template1, template2, template3, out);
+        }
+    };
+
+    @Test
+    public void poorPressIsOutvotedInsteadOfRestarting()
+    {
+        byte[] finger = MatcherBenchmark.randomTemplates(random, 1)[0];
+        byte[] other = MatcherBenchmark.randomTemplates(random, 1)[0];
+        EnrollmentSession session = new EnrollmentSession("alice", null, 3);
+
+        assertEquals(EnrollmentSession.Status.NEED_MORE, session.offer(matcher, MatcherBenchmark.noisyCopy(random, finger)));
+        assertEquals(EnrollmentSession.Status.REJECTED, session.offer(matcher, other));
+        assertEquals(2, session.remaining());
+        assertEquals(EnrollmentSession.Status.NEED_MORE, session.offer(matcher, MatcherBenchmark.noisyCopy(random, finger)));
+        assertEquals(EnrollmentSession.Status.READY, session.offer(matcher, MatcherBenchmark.noisyCopy(random, finger)));
+        assertEquals(0, session.remaining());
+
+        byte[] merged = new byte[FingerprintEngine.TEMPLATE_SIZE];
+        assertEquals(FingerprintEngine.TEMPLATE_SIZE, session.merge(matcher, merged));
+        assertTrue(SimulatedTemplateMatcher.score(finger, merged) > SimulatedTemplateMatcher.score(other, merged));
+        assertTrue(session.isClosed());
+        assertEquals(DBManager.NO_PROJECT, session.getProject());
+    }
+
+    @Test
+    public void fullSetDropsThePoorestSample()
+    {
+        byte[] finger = MatcherBenchmark.randomTemplates(random, 1)[0];
+        byte[][] others = MatcherBenchmark.randomTemplates(random, 4);
+        EnrollmentSession session = new EnrollmentSession("alice", "site", 3);
+
+        assertEquals(EnrollmentSession.Status.NEED_MORE, session.offer(matcher, MatcherBenchmark.noisyCopy(random, finger)));
+        assertEquals(EnrollmentSession.Status.NEED_MORE, session.offer(matcher, MatcherBenchmark.noisyCopy(random, finger)));
+        // the set holds 3 + SPARE_SLOTS samples; the fourth poor press overflows it and one
+        // of the poor presses, not a good one, is dropped
+        for (byte[] other : others) {
+            assertEquals(EnrollmentSession.Status.REJECTED, session.offer(matcher, other));
+        }
+        assertEquals(EnrollmentSession.Status.READY, session.offer(matcher, MatcherBenchmark.noisyCopy(random, finger)));
+        assertTrue(session.merge(matcher, new byte[FingerprintEngine.TEMPLATE_SIZE]) > 0);
+        assertEquals(1, merges);
+    }
+
+    @Test
+    public void failsAfterTooManyPressesWithoutAgreement()
+    {
+        EnrollmentSession session = new EnrollmentSession("alice", null, 3);
+        byte[][] presses = MatcherBenchmark.randomTemplates(random, 9);
+        assertEquals(EnrollmentSession.Status.NEED_MORE, session.offer(matcher, presses[0]));
+        for (int i = 1; i < presses.length - 1; i++) {
+            assertEquals(EnrollmentSession.Status.REJECTED, session.offer(matcher, presses[i]));
+        }
+        assertEquals(EnrollmentSession.Status.FAILED, session.offer(matcher, presses[presses.length - 1]));
+        assertTrue(session.isClosed());
+        assertEquals(EnrollmentSession.Status.CLOSED, session.offer(matcher, presses[0]));
+        assertEquals(0, session.merge(matcher, new byte[FingerprintEngine.TEMPLATE_SIZE]));
+        assertEquals(0, merges);
+    }
+
+    @Test
+    public void cancelClosesTheSession()
+    {
+        byte[] finger = MatcherBenchmark.randomTemplates(random, 1)[0];
+        EnrollmentSession session = new EnrollmentSession("alice", null, 3);
+        assertEquals(EnrollmentSession.Status.NEED_MORE, session.offer(matcher, MatcherBenchmark.noisyCopy(random, finger)));
+        assertEquals(EnrollmentSession.Status.NEED_MORE, session.offer(matcher, MatcherBenchmark.noisyCopy(random, finger)));
+
+        session.cancel();
+        assertTrue(session.isClosed());
+        assertEquals(EnrollmentSession.Status.CLOSED, session.offer(matcher, MatcherBenchmark.noisyCopy(random, finger)));
+        assertEquals(0, session.merge(matcher, new byte[FingerprintEngine.TEMPLATE_SIZE]));
+        assertEquals(0, merges);
+    }
+
+    @Test
+    public void requiredSamplesAreClamped()
+    {
+        assertEquals(EnrollmentSession.DEFAULT_SAMPLES, new EnrollmentSession("a", null, 0).getRequiredSamples());
+        assertEquals(EnrollmentSession.MAX_SAMPLES, new EnrollmentSession("a", null, 100).getRequiredSamples());
+        assertEquals(5, EnrollmentSession.clampSamples(5));
+    }
+}
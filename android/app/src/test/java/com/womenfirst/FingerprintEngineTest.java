@@ -0,0 +1,150 @@
+package com.womenfirst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+/** Runs enrollment and identification through {@link FingerprintEngine} over {@link SimulatedTemplateMatcher}. */
+public class FingerprintEngineTest {
+    private final Random random = new Random(11);
+    private final List<String> results = new ArrayList<String>();
+    private String enrolledPin = null;
+    private String enrolledProject = null;
+    private final FingerprintEngine engine = new FingerprintEngine(new SimulatedTemplateMatcher(), new FingerprintEngine.Listener() {
+        @Override
+        public void onResult(String message) {
+            results.add(message);
+        }
+
+        @Override
+        public void onEnrolled(String pin, String project, byte[] template, int length) {
+            enrolledPin = pin;
+            enrolledProject = project;
+        }
+    });
+
+    @Test
+    public void registerMergesSamplesAndIdentifiesTheNewUser()
+    {
+        byte[] finger = MatcherBenchmark.randomTemplates(random, 1)[0];
+        engine.addToGallery(MatcherBenchmark.randomTemplates(random, 1)[0], "bob", "site");
+        engine.setScope("site");
+        engine.startEnroll("alice");
+        assertTrue(engine.isEnrolling());
+
+        engine.onTemplate(MatcherBenchmark.noisyCopy(random, finger));
+        assertEquals("You need to press the 2 times fingerprint", last());
+        engine.onTemplate(MatcherBenchmark.randomTemplates(random, 1)[0]);
+        assertEquals("sample does not match the others, please press the same finger again, 2 more needed", last());
+        engine.onTemplate(MatcherBenchmark.noisyCopy(random, finger));
+        engine.onTemplate(MatcherBenchmark.noisyCopy(random, finger));
+        assertEquals("alice", enrolledPin);
+        assertEquals("site", enrolledProject);
+        assertFalse(engine.isEnrolling());
+
+        engine.enrollStored("alice", true);
+        assertEquals("enroll succ", last());
+        engine.onTemplate(MatcherBenchmark.noisyCopy(random, finger));
+        assertTrue(last(), last().startsWith("identify succ, userid:alice, score:"));
+    }
+
+    @Test
+    public void registerRefusesAFingerEnrolledInAnotherProject()
+    {
+        byte[] finger = MatcherBenchmark.randomTemplates(random, 1)[0];
+        engine.addToGallery(finger, "bob", "other");
+        engine.setScope("site");
+        engine.startEnroll("alice");
+        for (int i = 0; i < EnrollmentSession.DEFAULT_SAMPLES; i++) {
+            engine.doRegister(MatcherBenchmark.noisyCopy(random, finger));
+        }
+        assertEquals("the finger already enroll by bob,cancel enroll", last());
+        assertNull(enrolledPin);
+        assertFalse(engine.isEnrolling());
+    }
+
+    @Test
+    public void registerGivesUpWhenNoSamplesAgree()
+    {
+        engine.startEnroll("alice");
+        for (byte[] press : MatcherBenchmark.randomTemplates(random, 3 * EnrollmentSession.DEFAULT_SAMPLES)) {
+            engine.doRegister(press);
+        }
+        assertEquals("please press the same finger 3 times for the enrollment, cancel enroll", last());
+        assertNull(enrolledPin);
+        assertFalse(engine.isEnrolling());
+
+        int reported = results.size();
+        engine.doRegister(MatcherBenchmark.randomTemplates(random, 1)[0]);
+        assertEquals(reported, results.size());
+    }
+
+    @Test
+    public void cancelledEnrollmentIgnoresFurtherPresses()
+    {
+        byte[] finger = MatcherBenchmark.randomTemplates(random, 1)[0];
+        engine.startEnroll("alice");
+        engine.doRegister(MatcherBenchmark.noisyCopy(random, finger));
+        engine.cancelEnroll();
+        assertFalse(engine.isEnrolling());
+
+        int reported = results.size();
+        engine.doRegister(MatcherBenchmark.noisyCopy(random, finger));
+        engine.doRegister(MatcherBenchmark.noisyCopy(random, finger));
+        assertEquals(reported, results.size());
+        assertNull(enrolledPin);
+    }
+
+    @Test
+    public void failedStoreTakesTheUserBackOut()
+    {
+        byte[] finger = MatcherBenchmark.randomTemplates(random, 1)[0];
+        engine.startEnroll("alice");
+        for (int i = 0; i < EnrollmentSession.DEFAULT_SAMPLES; i++) {
+            engine.doRegister(MatcherBenchmark.noisyCopy(random, finger));
+        }
+        assertEquals("alice", enrolledPin);
+
+        engine.enrollStored("alice", false);
+        assertEquals("enroll fail, save template fail", last());
+        engine.doIdentify(MatcherBenchmark.noisyCopy(random, finger));
+        assertTrue(last(), last().startsWith("identify fail"));
+    }
+
+    @Test
+    public void identifyOnlyAcceptsUsersInScope()
+    {
+        byte[] finger = MatcherBenchmark.randomTemplates(random, 1)[0];
+        engine.addToGallery(finger, "alice", "north");
+        engine.addToGallery(MatcherBenchmark.randomTemplates(random, 1)[0], "bob", "south");
+
+        engine.setScope("south");
+        engine.doIdentify(MatcherBenchmark.noisyCopy(random, finger));
+        assertTrue(last(), last().startsWith("identify fail"));
+
+        engine.setScope("north");
+        engine.doIdentify(MatcherBenchmark.noisyCopy(random, finger));
+        assertTrue(last(), last().startsWith("identify succ, userid:alice, score:"));
+        assertEquals(1, engine.getHotUsers().size());
+
+        // the second hit comes from the hot set, which honours the scope too
+        engine.setScope("south");
+        engine.doIdentify(MatcherBenchmark.noisyCopy(random, finger));
+        assertTrue(last(), last().startsWith("identify fail"));
+        engine.setScope(null);
+        engine.doIdentify(MatcherBenchmark.noisyCopy(random, finger));
+        assertTrue(last(), last().startsWith("identify succ, userid:alice, score:"));
+    }
+
+    private String last()
+    {
+        return results.isEmpty() ? null : results.get(results.size() - 1);
+    }
+}
@@ -0,0 +1,98 @@
+package com.womenfirst;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class IdentifyResultTest {
+    private final PinIndex pins = new PinIndex();
+    private final IdentifyResult result = new IdentifyResult(5);
+
+    @Test
+    public void parsesEveryCandidateBestFirst()
+    {
+        write("alice\t95\nbob\t80\ncarol\t75");
+        assertEquals(3, result.parse(pins, 3));
+        assertCandidate(0, "alice", 95);
+        assertCandidate(1, "bob", 80);
+        assertCandidate(2, "carol", 75);
+    }
+
+    @Test
+    public void parsesNoMoreThanTheMatcherReported()
+    {
+        write("alice\t95\nbob\t80\ncarol\t75");
+        assertEquals(2, result.parse(pins, 2));
+        assertEquals(2, result.count());
+
+        IdentifyResult small = new IdentifyResult(1);
+        byte[] text = "alice\t95\nbob\t80".getBytes(Charset.forName("UTF-8"));
+        System.arraycopy(text, 0, small.buffer, 0, text.length);
+        assertEquals(1, small.parse(pins, 2));
+    }
+
+    @Test
+    public void keepsSpacesInsidePins()
+    {
+        write("bob 71\t95\nmary ann \t88");
+        assertEquals(2, result.parse(pins, 2));
+        // "bob 71" with score 95, not "bob" with score 7195 or 71
+        assertCandidate(0, "bob 71", 95);
+        // trailing spaces before the tab are padding
+        assertCandidate(1, "mary ann", 88);
+    }
+
+    @Test
+    public void ignoresTheTailOfALongerEarlierResult()
+    {
+        write("alice\t95\nbob\t80\ncarol\t75");
+        result.parse(pins, 3);
+        result.clear();
+        write("bob\t71");
+        assertEquals(1, result.parse(pins, 1));
+        assertCandidate(0, "bob", 71);
+    }
+
+    @Test
+    public void emptyOutputHasNoCandidates()
+    {
+        assertEquals(0, result.parse(pins, 5));
+        write("alice\t95");
+        assertEquals(0, result.parse(pins, 0));
+        assertEquals(0, result.count());
+    }
+
+    @Test
+    public void stopsAtTheFirstMalformedEntry()
+    {
+        write("alice\t95\nbob\tx\ncarol\t75");
+        assertEquals(1, result.parse(pins, 3));
+        assertCandidate(0, "alice", 95);
+
+        result.clear();
+        write("alice95\nbob\t80");
+        assertEquals(0, result.parse(pins, 2));
+
+        result.clear();
+        write("\t95\nbob\t80");
+        assertEquals(0, result.parse(pins, 2));
+
+        result.clear();
+        write("alice");
+        assertEquals(0, result.parse(pins, 1));
+    }
+
+    private void write(String text)
+    {
+        byte[] bytes = text.getBytes(Charset.forName("UTF-8"));
+        System.arraycopy(bytes, 0, result.buffer, 0, bytes.length);
+    }
+
+    private void assertCandidate(int i, String pin, int score)
+    {
+        assertEquals(pin, result.pin(pins, i));
+        assertEquals(score, result.scores[i]);
+    }
+}
@@ -0,0 +1,38 @@
+package com.womenfirst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class MatcherBenchmarkTest {
+    private static final int[] GALLERY_SIZES = new int[] { 200, 1000 };
+
+    @Test
+    public void identifyLatencyCoversEverySizeAndShardCount()
+    {
+        int[] shards = new int[] { 1, 2 };
+        List<MatcherBenchmark.Result> results = MatcherBenchmark.identifyLatency(GALLERY_SIZES, shards);
+        assertEquals(GALLERY_SIZES.length * shards.length, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            MatcherBenchmark.Result result = results.get(i);
+            assertEquals("identify", result.name);
+            assertEquals(GALLERY_SIZES[i / shards.length], result.gallerySize);
+            assertEquals(shards[i % shards.length], result.shards);
+            assertTrue(result.toString(), result.avgMs > 0 && result.p95Ms > 0);
+        }
+    }
+
+    @Test
+    public void mergedDuplicateCheckIdentifiesOncePerEnrollment()
+    {
+        List<MatcherBenchmark.Result> results = MatcherBenchmark.enrollmentLatency(new int[] { 1000 });
+        assertEquals(2, results.size());
+        assertEquals("enroll-per-press", results.get(0).name);
+        assertEquals("enroll-merged-check", results.get(1).name);
+        // three 1:N identifies against one; allow generous noise on a shared CI machine
+        assertTrue(results.get(0) + " vs " + results.get(1), results.get(1).avgMs < results.get(0).avgMs * 1.5);
+    }
+}
@@ -0,0 +1,62 @@
+package com.womenfirst;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+public class PreviewBenchmarkTest {
+
+    @Test
+    public void pooledResizeStaysWithinAllocationBudget()
+    {
+        assumeTrue("VM does not report per-thread allocation", PreviewBenchmark.threadAllocatedBytes() >= 0);
+        List<PreviewBenchmark.Result> results = PreviewBenchmark.run(PreviewBenchmark.defaultPaths(),
+                PreviewBenchmark.DEFAULT_WIDTH, PreviewBenchmark.DEFAULT_HEIGHT);
+        assertWithinBudget(find(results, "area-average"));
+        // the old path allocates a full-size ARGB frame every time
+        assertTrue(find(results, "render-scale").allocatedBytes
+                > 4L * PreviewBenchmark.DEFAULT_WIDTH * PreviewBenchmark.DEFAULT_HEIGHT / 2);
+    }
+
+    @Test
+    public void base64SinkAllocatesOnlyItsString()
+    {
+        assumeTrue("VM does not report per-thread allocation", PreviewBenchmark.threadAllocatedBytes() >= 0);
+        List<PreviewBenchmark.Result> results = PreviewBenchmark.run(PreviewBenchmark.defaultEncodePaths(),
+                PreviewBenchmark.DEFAULT_JPEG_BYTES, 1);
+        assertWithinBudget(find(results, "base64-sink"));
+    }
+
+    @Test
+    public void areaAverageKeepsAspectRatio()
+    {
+        PreviewDownsampler downsampler = new PreviewDownsampler(PreviewBenchmark.PREVIEW_SIZE, PreviewBenchmark.PREVIEW_SIZE);
+        downsampler.downsample(new byte[PreviewBenchmark.DEFAULT_WIDTH * PreviewBenchmark.DEFAULT_HEIGHT],
+                PreviewBenchmark.DEFAULT_WIDTH, PreviewBenchmark.DEFAULT_HEIGHT);
+        assertEquals(75, downsampler.getWidth());
+        assertEquals(100, downsampler.getHeight());
+    }
+
+    private static void assertWithinBudget(PreviewBenchmark.Result result)
+    {
+        assertTrue(result.name + " was not measured", result.measured);
+        long budget = PreviewBenchmark.allocationBudget(result);
+        assertTrue(result.name + " allocates " + result.allocatedBytes + "B/frame, budget " + budget,
+                result.allocatedBytes <= budget);
+    }
+
+    private static PreviewBenchmark.Result find(List<PreviewBenchmark.Result> results, String name)
+    {
+        for (PreviewBenchmark.Result result : results) {
+            if (name.equals(result.name))
+            {
+                return result;
+            }
+        }
+        throw new AssertionError("no result for " + name);
+    }
+}
@@ -6,18 +6,26 @@ import {
   StyleSheet,
   Alert,
   Image,
-  DeviceEventEmitter,
   ToastAndroid,
   NativeModules,
   ActivityIndicator,
 } from 'react-native';
 import syncStorage from 'react-native-sync-storage';
+import RNFS from 'react-native-fs';
 import LinearGradient from 'react-native-linear-gradient';
 import Icon from 'react-native-vector-icons/MaterialIcons';
+import {addZKTecoListener, saveBiometricFrame} from '../utils/ZKTecoEvents';
 
 const {ZKTecoModule} = NativeModules;
 
+// store-fp-image takes one JSON POST with a data URI and does not speak the native chunked
+// resume protocol (see ChunkedUploader.java), so chunked upload stays off until a server that
+// does is deployed; set its URL here to upload the full-resolution capture from native instead.
+const CHUNKED_UPLOAD_ENDPOINT = null;
+
 const FPImageStore = ({navigation}) => {
+  // {uri, path, captureId, mimeType} in file mode, {uri, base64, captureId, mimeType} if
+  // native sends Base64; mimeType follows the preview codec (PreviewConfig.mimeType)
   const [fpImage, setFpImage] = useState(null);
   const [loading, setLoading] = useState(false);
   const [deviceStatus, setDeviceStatus] = useState('Not Initialized');
@@ -62,26 +70,44 @@ const FPImageStore = ({navigation}) => {
   useEffect(() => {
     console.log('👂 Registering ImageReceivedEvent listener');
 
-    const listener = DeviceEventEmitter.addListener(
+    // frames arrive as cache file paths; the image is only read when submitting
+    let previousMode = null;
+    ZKTecoModule.setPreviewMode('file')
+      .then(mode => {
+        previousMode = mode;
+      })
+      .catch(err => console.log('❌ setPreviewMode error:', err));
+
+    const listener = addZKTecoListener(
       'ImageReceivedEvent',
       event => {
-        console.log('📸 ImageReceivedEvent EVENT:', event);
-
-        const {imageBase64} = event;
-        console.log('🖼️ Base64 Image Length:', imageBase64?.length);
-
-        setFpImage(imageBase64);
-
-        const bioObj = {image: imageBase64};
-        syncStorage.set('biometric_obj', bioObj);
-
-        console.log('💾 biometric_obj saved to syncStorage:', bioObj);
+        console.log('📸 ImageReceivedEvent EVENT:', event.captureId, event.path);
+
+        if (event.path) {
+          const {uri, path, captureId, mimeType} = event;
+          setFpImage({uri, path, captureId, mimeType});
+        } else {
+          const {imageBase64, captureId, mimeType = 'image/jpeg'} = event;
+          console.log('🖼️ Base64 Image Length:', imageBase64?.length);
+          setFpImage({
+            uri: `data:${mimeType};base64,${imageBase64}`,
+            base64: imageBase64,
+            captureId,
+            mimeType,
+          });
+        }
+        saveBiometricFrame(event)
+          .then(obj => obj && console.log('💾 biometric_obj saved to syncStorage:', obj.image.length))
+          .catch(err => console.log('❌ save biometric_obj error:', err));
       },
     );
 
     return () => {
       console.log('🧹 Removing ImageReceivedEvent listener');
       listener.remove();
+      if (previousMode && previousMode !== 'file') {
+        ZKTecoModule.setPreviewMode(previousMode).catch(() => {});
+      }
     };
   }, []);
 
@@ -101,18 +127,38 @@ const FPImageStore = ({navigation}) => {
       return;
     }
 
-    const payload = {
+    setLoading(true);
+
+    const fields = {
       cnic: cnic,
       centralized_userid: centralized_userid,
       project_name: project_name,
-      device_image: `data:image/png;base64,${fpImage}`,
     };
 
-    console.log('📤 API PAYLOAD:', payload);
-
-    setLoading(true);
+    try {
+      if (CHUNKED_UPLOAD_ENDPOINT) {
+        await uploadChunked(fields);
+      } else {
+        await postJson(fields);
+      }
+    } finally {
+      setLoading(false);
+    }
+  };
 
+  const postJson = async fields => {
     try {
+      // the ring keeps only the last few frames; a stale path fails here, not on the server
+      const imageBase64 =
+        fpImage.base64 ?? (await RNFS.readFile(fpImage.path, 'base64'));
+
+      const payload = {
+        ...fields,
+        device_image: `data:${fpImage.mimeType ?? 'image/jpeg'};base64,${imageBase64}`,
+      };
+
+      console.log('📤 API PAYLOAD:', {...payload, device_image: imageBase64.length});
+
       const response = await fetch(
         'https://dashboard-wdd.punjab.gov.pk/api/store-fp-image',
         {
@@ -131,23 +177,58 @@ const FPImageStore = ({navigation}) => {
       console.log('📥 API RESPONSE:', data);
 
       if (response.ok) {
-        Alert.alert('✅ Success', 'Fingerprint image saved successfully', [
-          {
-            text: 'OK',
-            onPress: () => navigation.navigate('DashboardWDD'),
-          },
-        ]);
+        onSaved();
       } else {
         Alert.alert('❌ Error', JSON.stringify(data));
       }
     } catch (error) {
       console.log('❌ NETWORK ERROR:', error);
       Alert.alert('Error', 'Network error');
+    }
+  };
+
+  // native streams the full-resolution capture in chunks and resumes after a dropped
+  // connection; only the capture id and form fields cross the bridge
+  const uploadChunked = async fields => {
+    const progress = addZKTecoListener('FPUploadProgress', event => {
+      console.log('📤 Upload progress:', event.sent, '/', event.total);
+    });
+
+    try {
+      await ZKTecoModule.setUploadEndpoint(CHUNKED_UPLOAD_ENDPOINT);
+      console.log('📤 UPLOAD FIELDS:', fields, 'captureId:', fpImage.captureId);
+
+      const result = await ZKTecoModule.uploadCapture({
+        captureId: fpImage.captureId,
+        format: 'png',
+        fields,
+      });
+
+      console.log('📥 API RESPONSE:', result.status, result.response);
+      onSaved();
+    } catch (error) {
+      console.log('❌ UPLOAD ERROR:', error.code, error.message);
+      if (error.code === 'CAPTURE_GONE') {
+        Alert.alert('Error', 'Please scan fingerprint again');
+      } else if (error.code === 'UPLOAD_FAILED') {
+        Alert.alert('❌ Error', error.message);
+      } else {
+        Alert.alert('Error', 'Network error');
+      }
     } finally {
-      setLoading(false);
+      progress.remove();
     }
   };
 
+  const onSaved = () => {
+    Alert.alert('✅ Success', 'Fingerprint image saved successfully', [
+      {
+        text: 'OK',
+        onPress: () => navigation.navigate('DashboardWDD'),
+      },
+    ]);
+  };
+
   /* ================= UI ================= */
   return (
     <LinearGradient colors={['#f3e7ff', '#ffffff']} style={styles.container}>
@@ -168,7 +249,7 @@ const FPImageStore = ({navigation}) => {
           <>
             <Text style={styles.previewText}>Captured Fingerprint</Text>
             <Image
-              source={{uri: `data:image/png;base64,${fpImage}`}}
+              source={{uri: fpImage.uri}}
               style={styles.image}
             />
           </>
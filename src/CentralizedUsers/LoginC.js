@@ -14,7 +14,6 @@ import {
   ScrollView,
   NativeModules,
   ToastAndroid,
-  DeviceEventEmitter,
 } from 'react-native';
 import {LinearGradient} from 'react-native-linear-gradient';
 import Icon from 'react-native-vector-icons/MaterialIcons';
@@ -22,6 +21,7 @@ import EncryptedStorage from 'react-native-encrypted-storage';
 import syncStorage from 'react-native-sync-storage';
 import ImageView from 'react-native-image-viewing';
 import notifee, {AndroidImportance} from '@notifee/react-native';
+import {addZKTecoListener, saveBiometricFrame} from '../utils/ZKTecoEvents';
 
 const LoginC = ({navigation}) => {
   const [cnic, setCnic] = useState('');
@@ -29,7 +29,7 @@ const LoginC = ({navigation}) => {
   const [errors, setErrors] = useState({});
   const [isLoading, setIsLoading] = useState(false);
   const [filesVisibile, setFilesVisible] = useState(false);
-  const [imageBase64, setImageBase64] = React.useState(null);
+  const [fpFrameUri, setFpFrameUri] = React.useState(null);
   const {ZKTecoModule} = NativeModules;
 
   const initializeDevice = () => {
@@ -43,22 +43,33 @@ const LoginC = ({navigation}) => {
         console.error(error);
       });
   };
+  // biometric_obj holds {image, mimeType}, see saveBiometricFrame
+  const fpImageUri = obj => {
+    if (!obj || !obj.image) {
+      return '';
+    }
+    return `data:${obj.mimeType || 'image/jpeg'};base64,${obj.image}`;
+  };
   const biometricObj = syncStorage.get('biometric_obj');
-  const FPImage = biometricObj && biometricObj.image ? biometricObj.image : '';
+  const FPImage = fpImageUri(biometricObj);
   // You can also add some initial logging when the component mounts
   useEffect(() => {
-    const eventListener = DeviceEventEmitter.addListener(
+    const eventListener = addZKTecoListener(
       'ImageReceivedEvent',
       event => {
-        const {imageBase64} = event;
-        console.log('Image Base64', imageBase64);
-
-        const img_obj = {
-          image: imageBase64, //add other fields as needed to object such as Ambassador CNIC
-        };
-
-        syncStorage.set('biometric_obj', img_obj);
-        setImageBase64(imageBase64);
+        // file frames (preview mode 'file', set by FPImageStore while it is mounted) show
+        // straight from the ring; what is saved is always Base64
+        console.log('Image', event.path ?? event.imageBase64?.length);
+        if (event.uri) {
+          setFpFrameUri(event.uri);
+        }
+        saveBiometricFrame(event)
+          .then(img_obj => {
+            if (img_obj && !event.uri) {
+              setFpFrameUri(fpImageUri(img_obj));
+            }
+          })
+          .catch(err => console.log('save biometric_obj failed', err));
       },
     );
 
@@ -564,7 +575,7 @@ const LoginC = ({navigation}) => {
                 }}>
                 <Image
                   source={{
-                    uri: `data:image/png;base64,${FPImage}`,
+                    uri: FPImage,
                   }}
                   style={{
                     width: '50%',
@@ -596,7 +607,7 @@ const LoginC = ({navigation}) => {
       <ImageView
         images={[
           {
-            uri: `data:image/png;base64,${FPImage}`,
+            uri: FPImage,
           },
         ]}
         imageIndex={0}
@@ -0,0 +1,45 @@
+// File: src/utils/ZKTecoEvents.js
+
+import {NativeEventEmitter, NativeModules} from 'react-native';
+import RNFS from 'react-native-fs';
+import syncStorage from 'react-native-sync-storage';
+
+const {ZKTecoModule} = NativeModules;
+const emitter = new NativeEventEmitter(ZKTecoModule);
+
+// Subscribe to a ZKTecoModule event. Native counts subscribers per event and skips the
+// preview render/encode when nobody listens to ImageReceivedEvent. NativeEventEmitter only
+// reports removals as a count, so remove() also tells native which event lost a listener.
+export const addZKTecoListener = (eventName, handler) => {
+  const subscription = emitter.addListener(eventName, handler);
+  let removed = false;
+  return {
+    remove: () => {
+      if (removed) {
+        return;
+      }
+      removed = true;
+      subscription.remove();
+      ZKTecoModule.releaseListener(eventName);
+    },
+  };
+};
+
+// Stores an ImageReceivedEvent frame as syncStorage 'biometric_obj' = {image, mimeType}. A
+// file-mode frame is read into Base64 first: its path is a preview ring cache file, evicted
+// after a few captures and cleared on app start, so saving the path would leave a dangling
+// preview. Only the newest frame is saved if reads finish out of order.
+let lastSave = 0;
+export const saveBiometricFrame = async event => {
+  const save = ++lastSave;
+  const mimeType = event.mimeType || 'image/jpeg';
+  const image = event.path
+    ? await RNFS.readFile(event.path, 'base64')
+    : event.imageBase64;
+  if (save !== lastSave) {
+    return null;
+  }
+  const obj = {image, mimeType};
+  syncStorage.set('biometric_obj', obj);
+  return obj;
+};